@@ -0,0 +1,58 @@
+package scheduler.events;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// keeps running totals in memory, for dashboards that would otherwise poll the Appointments table
+public class AggregatingEventSink implements EventSubscriber {
+
+    private final AtomicLongArray counts = new AtomicLongArray(ChangeEvent.Type.values().length);
+    // vaccine name -> net bookings (created minus cancelled)
+    private final Map<String, LongAdder> bookings = new ConcurrentHashMap<>();
+    // vaccine name -> doses added
+    private final Map<String, LongAdder> dosesAdded = new ConcurrentHashMap<>();
+
+    @Override
+    public void onEvent(ChangeEvent event, long sequence, boolean endOfBatch) {
+        counts.incrementAndGet(event.getType().ordinal());
+        switch (event.getType()) {
+            case APPOINTMENT_CREATED:
+                bookings.computeIfAbsent(event.getVaccineName(), k -> new LongAdder()).increment();
+                break;
+            case APPOINTMENT_CANCELLED:
+                bookings.computeIfAbsent(event.getVaccineName(), k -> new LongAdder()).decrement();
+                break;
+            case DOSES_ADDED:
+                dosesAdded.computeIfAbsent(event.getVaccineName(), k -> new LongAdder()).add(event.getDoses());
+                break;
+            default:
+                break;
+        }
+    }
+
+    public long getCount(ChangeEvent.Type type) {
+        return counts.get(type.ordinal());
+    }
+
+    public long getBookings(String vaccineName) {
+        LongAdder adder = bookings.get(vaccineName);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    public long getDosesAdded(String vaccineName) {
+        LongAdder adder = dosesAdded.get(vaccineName);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("AggregatingEventSink{");
+        for (ChangeEvent.Type type : ChangeEvent.Type.values()) {
+            sb.append(type).append('=').append(getCount(type)).append(", ");
+        }
+        return sb.append("bookings=").append(bookings).append(", dosesAdded=").append(dosesAdded).append('}')
+                .toString();
+    }
+}
@@ -0,0 +1,173 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+
+import java.sql.*;
+
+public class Appointment {
+    // the Slot of an appointment that has the caregiver's whole day, a window's slot may start at minute 0
+    public static final int WHOLE_DAY = -1;
+
+    private final int id;
+    private final String vaccineName;
+    private final Date time;
+    private final String patientName;
+    private final String caregiverName;
+    // minute of the day the booked slot starts, WHOLE_DAY for whole-day appointments
+    private final int slot;
+    // the dose lot the appointment's dose came from, null for doses that belong to no lot
+    private final String lot;
+
+    private Appointment(AppointmentBuilder builder) {
+        this.id = builder.id;
+        this.vaccineName = builder.vaccineName;
+        this.time = builder.time;
+        this.patientName = builder.patientName;
+        this.caregiverName = builder.caregiverName;
+        this.slot = builder.slot;
+        this.lot = builder.lot;
+    }
+
+    // Getters
+    public int getId() {
+        return id;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    public String getPatientName() {
+        return patientName;
+    }
+
+    public String getCaregiverName() {
+        return caregiverName;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    // minute of the day an appointment with the given Slot starts, a whole day starts at midnight
+    public static int startMinute(int slot) {
+        return slot == WHOLE_DAY ? 0 : slot;
+    }
+
+    public String getLot() {
+        return lot;
+    }
+
+    // the next ID from the AppointmentIds sequence, drawn in the caller's insert transaction. Every node shares the
+    // one sequence, so no two hand out the same ID; an ID whose transaction rolls back is simply skipped
+    public static int nextID(Connection con) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("SELECT NEXT VALUE FOR AppointmentIds");
+        ResultSet resultSet = statement.executeQuery();
+        resultSet.next();
+        return resultSet.getInt(1);
+    }
+
+    // deletes the appointment if the given user is its patient or caregiver, returns what was deleted or null.
+    // The caregiver gets the slot back and the dose goes back to its lot and the total, unless the lot expired in
+    // the meantime, all in the transaction that deletes the row, so a failure leaves the appointment as it was
+    public static Appointment cancel(int id, String username) throws SQLException {
+        Appointment appointment = Retry.run(() -> cancelOnce(id, username));
+        if (appointment != null) {
+            ModelCache.invalidateAvailability(appointment.time);
+            ModelCache.invalidateVaccine(appointment.vaccineName);
+            if (appointment.lot != null) {
+                DoseLots.restored(appointment.vaccineName, appointment.lot, Utilization.today());
+            }
+        }
+        return appointment;
+    }
+
+    private static Appointment cancelOnce(int id, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        // the row is locked when read, so a concurrent cancel of the same appointment finds nothing to delete
+        String getAppointment = "SELECT Vaccine_Name, Time, Patient_Name, Caregiver_Name, Slot, Lot " +
+                "FROM Appointments WITH (UPDLOCK, ROWLOCK) WHERE ID = ? AND (Patient_Name = ? OR Caregiver_Name = ?)";
+        String removeAppointment = "DELETE FROM Appointments WHERE ID = ?";
+        String addDose = "UPDATE Vaccines SET Doses = Doses + 1, Version = Version + 1 WHERE Name = ?";
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement = con.prepareStatement(getAppointment);
+            statement.setInt(1, id);
+            statement.setString(2, username);
+            statement.setString(3, username);
+            ResultSet resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                return null;
+            }
+            Appointment appointment = new AppointmentBuilder(id, resultSet.getString("Vaccine_Name"),
+                    resultSet.getDate("Time"), resultSet.getString("Patient_Name"),
+                    resultSet.getString("Caregiver_Name"), resultSet.getInt("Slot"),
+                    resultSet.getString("Lot")).build();
+            resultSet.close();
+            PreparedStatement remove = con.prepareStatement(removeAppointment);
+            remove.setInt(1, id);
+            if (remove.executeUpdate() == 0) {
+                return null;
+            }
+            Utilization.addVaccine(con, appointment.time, appointment.vaccineName, -1, 0);
+            Availability.release(con, appointment.caregiverName, appointment.time, startMinute(appointment.slot));
+            Date today = Utilization.today();
+            if (appointment.lot == null || DoseLots.release(con, appointment.vaccineName, appointment.lot, today)) {
+                PreparedStatement update = con.prepareStatement(addDose);
+                update.setString(1, appointment.vaccineName);
+                update.executeUpdate();
+                Utilization.addVaccine(con, today, appointment.vaccineName, 0, 1);
+            }
+            con.commit();
+            return appointment;
+        } finally {
+            // an uncommitted transaction is rolled back when the connection goes back to the pool
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Appointment{" +
+                "id=" + id +
+                ", vaccineName='" + vaccineName + '\'' +
+                ", time=" + time +
+                ", patientName='" + patientName + '\'' +
+                ", caregiverName='" + caregiverName + '\'' +
+                ", slot=" + slot +
+                ", lot='" + lot + '\'' +
+                '}';
+    }
+
+    public static class AppointmentBuilder {
+        private final int id;
+        private final String vaccineName;
+        private final Date time;
+        private final String patientName;
+        private final String caregiverName;
+        private final int slot;
+        private final String lot;
+
+        public AppointmentBuilder(int id, String vaccineName, Date time, String patientName, String caregiverName,
+                                  int slot, String lot) {
+            this.id = id;
+            this.vaccineName = vaccineName;
+            this.time = time;
+            this.patientName = patientName;
+            this.caregiverName = caregiverName;
+            this.slot = slot;
+            this.lot = lot;
+        }
+
+        public Appointment build() {
+            return new Appointment(this);
+        }
+    }
+}
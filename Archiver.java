@@ -0,0 +1,140 @@
+package scheduler.archive;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class Archiver {
+
+    // every batch moves rows with a single DELETE ... OUTPUT INTO statement, so a row is either in the hot table
+    // or in its history table, never both. READPAST skips rows a live transaction holds instead of waiting for
+    // them, and the batch stays below SQL Server's lock escalation threshold of 5000 rows.
+    private static final String archiveAvailabilities = "DELETE TOP (?) FROM Availabilities WITH (ROWLOCK, READPAST) " +
+            "OUTPUT deleted.Time, deleted.Username, deleted.StartMinute, deleted.EndMinute, deleted.SlotMinutes, " +
+            "deleted.Booked, deleted.FreeSlots, SYSUTCDATETIME() " +
+            "INTO AvailabilitiesHistory (Time, Username, StartMinute, EndMinute, SlotMinutes, Booked, FreeSlots, " +
+            "ArchivedAt) " +
+            "WHERE Time < ?";
+    private static final String archiveAppointments = "DELETE TOP (?) FROM Appointments WITH (ROWLOCK, READPAST) " +
+            "OUTPUT deleted.ID, deleted.Vaccine_Name, deleted.Time, deleted.Patient_Name, deleted.Caregiver_Name, " +
+            "deleted.Slot, deleted.Lot, SYSUTCDATETIME() " +
+            "INTO AppointmentsHistory (ID, Vaccine_Name, Time, Patient_Name, Caregiver_Name, Slot, Lot, " +
+            "ArchivedAt) " +
+            "WHERE Time < ?";
+    // H2 has no OUTPUT clause: the embedded profile copies a batch, then deletes the rows that were copied, in one
+    // transaction. It serves a single node, there are no concurrent archivers to skip past
+    private static final String copyAvailabilities = "INSERT INTO AvailabilitiesHistory (Time, Username, " +
+            "StartMinute, EndMinute, SlotMinutes, Booked, FreeSlots, ArchivedAt) SELECT TOP (?) Time, Username, " +
+            "StartMinute, EndMinute, SlotMinutes, Booked, FreeSlots, CURRENT_TIMESTAMP FROM Availabilities " +
+            "WHERE Time < ?";
+    private static final String deleteAvailabilities = "DELETE FROM Availabilities WHERE Time < ? AND EXISTS " +
+            "(SELECT 1 FROM AvailabilitiesHistory h WHERE h.Time = Availabilities.Time " +
+            "AND h.Username = Availabilities.Username)";
+    private static final String copyAppointments = "INSERT INTO AppointmentsHistory (ID, Vaccine_Name, Time, " +
+            "Patient_Name, Caregiver_Name, Slot, Lot, ArchivedAt) SELECT TOP (?) ID, Vaccine_Name, Time, " +
+            "Patient_Name, Caregiver_Name, Slot, Lot, CURRENT_TIMESTAMP FROM Appointments WHERE Time < ?";
+    private static final String deleteAppointments = "DELETE FROM Appointments WHERE Time < ? AND EXISTS " +
+            "(SELECT 1 FROM AppointmentsHistory h WHERE h.ID = Appointments.ID)";
+
+    private final int horizonDays;
+    private final int batchSize;
+    private final long pauseMillis;
+
+    public Archiver(int horizonDays, int batchSize, long pauseMillis) {
+        if (horizonDays < 0 || batchSize <= 0 || pauseMillis < 0) {
+            throw new IllegalArgumentException("Invalid archiver settings!");
+        }
+        this.horizonDays = horizonDays;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+    }
+
+    // starts a background archiver when ArchiveIntervalMinutes is set, the other settings have defaults
+    public static void startIfConfigured() {
+        String interval = System.getenv("ArchiveIntervalMinutes");
+        if (interval == null) {
+            return;
+        }
+        Archiver archiver = new Archiver(getenv("ArchiveHorizonDays", 30), getenv("ArchiveBatchSize", 500),
+                getenv("ArchivePauseMillis", 200));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        long minutes = Long.parseLong(interval);
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                archiver.archive();
+            } catch (SQLException e) {
+                System.out.println("Error occurred when archiving: " + e);
+            }
+        }, minutes, minutes, TimeUnit.MINUTES);
+    }
+
+    private static int getenv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    // moves everything older than the horizon, returns the number of rows archived
+    public int archive() throws SQLException {
+        Date cutoff = Date.valueOf(LocalDate.now().minusDays(horizonDays));
+        if (ConnectionManager.isEmbedded()) {
+            return archiveTable(copyAvailabilities, deleteAvailabilities, cutoff) +
+                    archiveTable(copyAppointments, deleteAppointments, cutoff);
+        }
+        return archiveTable(archiveAvailabilities, null, cutoff) + archiveTable(archiveAppointments, null, cutoff);
+    }
+
+    // deleteCopied is null when archiveBatch moves the rows by itself
+    private int archiveTable(String archiveBatch, String deleteCopied, Date cutoff) throws SQLException {
+        int total = 0;
+        while (true) {
+            int moved = archiveBatch(archiveBatch, deleteCopied, cutoff);
+            total += moved;
+            if (moved < batchSize) {
+                return total;
+            }
+            // give live reservations room between batches
+            try {
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return total;
+            }
+        }
+    }
+
+    private int archiveBatch(String archiveBatch, String deleteCopied, Date cutoff) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        try {
+            con.setAutoCommit(deleteCopied == null);
+            PreparedStatement statement = con.prepareStatement(archiveBatch);
+            statement.setInt(1, batchSize);
+            statement.setDate(2, cutoff);
+            int moved = statement.executeUpdate();
+            if (deleteCopied != null) {
+                PreparedStatement delete = con.prepareStatement(deleteCopied);
+                delete.setDate(1, cutoff);
+                delete.executeUpdate();
+                con.commit();
+            }
+            return moved;
+        } catch (SQLException e) {
+            System.out.println(e);
+            throw new SQLException();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class AsyncQuery {
+
+    // a query that opens its own ConnectionManager, so it can run next to other queries of the same command
+    public interface Query<T> {
+        T run() throws SQLException;
+    }
+
+    // one worker per pooled connection, more threads would only queue up inside the pool
+    private static final ExecutorService executor = Executors.newFixedThreadPool(ConnectionManager.getPoolSize(), r -> {
+        Thread t = new Thread(r, "async-query");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // the query runs under the Deadline of the submitting command, and on behalf of its session
+    public static <T> CompletableFuture<T> submit(Query<T> query) {
+        Deadline deadline = Deadline.current();
+        ReplicaRouter.Writes writes = ReplicaRouter.current();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return ReplicaRouter.runUnder(writes, () -> Deadline.runUnder(deadline, query));
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    // wait for a submitted query and rethrow its SQLException on the calling thread
+    public static <T> T await(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class Availability {
+    // writes a claimed or released slot map back, the second only if the row is still the version that was read.
+    // Shared with the batcher and warm start, the server caches a plan per statement text
+    public static final String updateSlots = "UPDATE Availabilities SET Booked = ?, FreeSlots = ?, " +
+            "Version = Version + 1 WHERE Time = ? AND Username = ?";
+    public static final String updateSlotsAtVersion = updateSlots + " AND Version = ?";
+
+    private final Date time;
+    private final String username;
+    // row version of the Availabilities row as read, a claim only succeeds if it is unchanged
+    private final int version;
+    // the caregiver's window on this day and which of its slots are booked
+    private final SlotMap slots;
+    // minute of the day of the slot this object booked, -1 until a claim succeeds
+    private int claimedMinute = -1;
+
+    private Availability(Date time, String username, int version, SlotMap slots) {
+        this.time = time;
+        this.username = username;
+        this.version = version;
+        this.slots = slots;
+    }
+
+    private Availability(ResultSet resultSet) throws SQLException {
+        this(resultSet.getDate("Time"), resultSet.getString("Username"), resultSet.getInt("Version"),
+                SlotMap.fromBytes(resultSet.getInt("StartMinute"), resultSet.getInt("EndMinute"),
+                        resultSet.getInt("SlotMinutes"), resultSet.getBytes("Booked")));
+    }
+
+    // Getters
+    public Date getTime() {
+        return time;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public SlotMap getSlots() {
+        return slots;
+    }
+
+    public int getClaimedMinute() {
+        return claimedMinute;
+    }
+
+    // a whole-day availability has a single slot, the way availabilities were stored before slots
+    public boolean isWholeDay() {
+        return slots.getSlotCount() == 1 && slots.getSlotMinutes() >= SlotMap.MINUTES_PER_DAY;
+    }
+
+    // the start of a slot on a date as one instant, for events and reminders
+    public static Date slotTime(Date d, int minute) {
+        return new Date(d.getTime() + TimeUnit.MINUTES.toMillis(minute));
+    }
+
+    // minute of the day of the first free slot starting at or after fromMinute, -1 if there is none
+    public int firstFree(int fromMinute) {
+        int slot = slots.firstFreeFrom(fromMinute);
+        return slot < 0 ? -1 : slots.minuteOf(slot);
+    }
+
+    // books the slot starting at the given minute, returns false if another reservation changed the row first
+    public boolean claim(int minute) throws SQLException {
+        SlotMap updated = slots.copy();
+        updated.book(slots.slotAt(minute));
+        if (!write(this.time, this.username, this.version, updated, 1)) {
+            return false;
+        }
+        this.claimedMinute = minute;
+        return true;
+    }
+
+    // one version-checked UPDATE of the slot bitmap plus the caregiver's booked counter, the only write a claim or a
+    // release sends
+    private static boolean write(Date time, String username, int version, SlotMap slots, int booked)
+            throws SQLException {
+        return Retry.run(() -> writeOnce(time, username, version, slots, booked));
+    }
+
+    private static boolean writeOnce(Date time, String username, int version, SlotMap slots, int booked)
+            throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        try {
+            PreparedStatement statement = con.prepareStatement(updateSlotsAtVersion);
+            statement.setBytes(1, slots.toBytes());
+            statement.setInt(2, slots.getFreeSlots());
+            statement.setDate(3, time);
+            statement.setString(4, username);
+            statement.setInt(5, version);
+            con.setAutoCommit(false);
+            if (statement.executeUpdate() != 1) {
+                return false;
+            }
+            Utilization.addCaregiver(con, time, username, 0, booked);
+            con.commit();
+            return true;
+        } finally {
+            // an uncommitted transaction is rolled back when the connection goes back to the pool
+            cm.closeConnection();
+            ModelCache.invalidateAvailability(time);
+        }
+    }
+
+    // pessimistic variant: lock the open availabilities on the date and book the first free slot at or after
+    // fromMinute in the same transaction, returns null if there is none left
+    public static Availability claimLocked(Date time, int fromMinute) throws SQLException {
+        return Retry.run(() -> claimLockedOnce(time, fromMinute));
+    }
+
+    private static Availability claimLockedOnce(Date time, int fromMinute) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String lockAvailabilities = "SELECT Time, Username, Version, StartMinute, EndMinute, SlotMinutes, Booked " +
+                "FROM Availabilities WITH (UPDLOCK, ROWLOCK) WHERE Time = ? AND FreeSlots > 0 AND EndMinute > ?";
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement lock = con.prepareStatement(lockAvailabilities);
+            lock.setDate(1, time);
+            lock.setInt(2, fromMinute);
+            ResultSet resultSet = lock.executeQuery();
+            Availability availability = null;
+            while (availability == null && resultSet.next()) {
+                Availability candidate = new Availability(resultSet);
+                int minute = candidate.firstFree(fromMinute);
+                if (minute >= 0) {
+                    candidate.slots.book(candidate.slots.slotAt(minute));
+                    candidate.claimedMinute = minute;
+                    availability = candidate;
+                }
+            }
+            resultSet.close();
+            if (availability == null) {
+                con.commit();
+                return null;
+            }
+            PreparedStatement update = con.prepareStatement(updateSlots);
+            update.setBytes(1, availability.slots.toBytes());
+            update.setInt(2, availability.slots.getFreeSlots());
+            update.setDate(3, time);
+            update.setString(4, availability.username);
+            update.executeUpdate();
+            Utilization.addCaregiver(con, time, availability.username, 0, 1);
+            con.commit();
+            return availability;
+        } finally {
+            cm.closeConnection();
+            ModelCache.invalidateAvailability(time);
+        }
+    }
+
+    // frees the slot of a cancelled appointment. Appointments booked before slots existed consumed the whole row,
+    // for those the whole-day availability is put back instead
+    public static void release(String username, Date time, int minute) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            List<Availability> rows = new AvailabilityGetter(username, time).get();
+            if (rows.isEmpty()) {
+                insertWholeDay(username, time);
+                return;
+            }
+            Availability availability = rows.get(0);
+            SlotMap updated = availability.slots.copy();
+            if (!updated.release(updated.slotAt(minute))) {
+                return;
+            }
+            if (write(time, username, availability.version, updated, -1)) {
+                return;
+            }
+            ConcurrencyControl.recordConflict();
+            if (attempt >= ConcurrencyControl.BACKOFF.getMaxAttempts()) {
+                throw new ConcurrentUpdateException("Too many concurrent updates to " + username + " on " + time);
+            }
+            ConcurrencyControl.BACKOFF.pause(attempt);
+        }
+    }
+
+    // release inside the caller's transaction, for a cancel that deletes the appointment in the same one. The row is
+    // locked and its version bumped, so a claim that read it before fails its version check and reads it again
+    public static void release(Connection con, String username, Date time, int minute) throws SQLException {
+        String lockAvailability = "SELECT StartMinute, EndMinute, SlotMinutes, Booked FROM Availabilities " +
+                "WITH (UPDLOCK, ROWLOCK) WHERE Time = ? AND Username = ?";
+        String addAvailability = "INSERT INTO Availabilities (Time, Username) VALUES (?, ?)";
+        PreparedStatement lock = con.prepareStatement(lockAvailability);
+        lock.setDate(1, time);
+        lock.setString(2, username);
+        ResultSet resultSet = lock.executeQuery();
+        if (!resultSet.next()) {
+            PreparedStatement statement = con.prepareStatement(addAvailability);
+            statement.setDate(1, time);
+            statement.setString(2, username);
+            statement.executeUpdate();
+            Utilization.addCaregiver(con, time, username, 0, -1);
+            return;
+        }
+        SlotMap slots = SlotMap.fromBytes(resultSet.getInt("StartMinute"), resultSet.getInt("EndMinute"),
+                resultSet.getInt("SlotMinutes"), resultSet.getBytes("Booked"));
+        resultSet.close();
+        if (!slots.release(slots.slotAt(minute))) {
+            return;
+        }
+        PreparedStatement statement = con.prepareStatement(updateSlots);
+        statement.setBytes(1, slots.toBytes());
+        statement.setInt(2, slots.getFreeSlots());
+        statement.setDate(3, time);
+        statement.setString(4, username);
+        statement.executeUpdate();
+        Utilization.addCaregiver(con, time, username, 0, -1);
+    }
+
+    // the day was already counted as offered when it was booked out, only the booking goes away
+    private static void insertWholeDay(String username, Date time) throws SQLException {
+        Retry.run(() -> insertWholeDayOnce(username, time));
+    }
+
+    private static Void insertWholeDayOnce(String username, Date time) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String addAvailability = "INSERT INTO Availabilities (Time, Username) VALUES (?, ?)";
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement = con.prepareStatement(addAvailability);
+            statement.setDate(1, time);
+            statement.setString(2, username);
+            statement.executeUpdate();
+            Utilization.addCaregiver(con, time, username, 0, -1);
+            con.commit();
+            return null;
+        } finally {
+            cm.closeConnection();
+            ModelCache.invalidateAvailability(time);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Availability{" +
+                "time=" + time +
+                ", username='" + username + '\'' +
+                ", version=" + version +
+                ", window=" + slots.getStartMinute() + "-" + slots.getEndMinute() +
+                ", freeSlots=" + slots.getFreeSlots() +
+                '}';
+    }
+
+    public static class AvailabilityGetter {
+        private final List<Date> times;
+        private final String username;
+
+        public AvailabilityGetter(Date time) {
+            this.times = Collections.singletonList(time);
+            this.username = null;
+        }
+
+        public AvailabilityGetter(Collection<Date> times) {
+            this.times = new ArrayList<>(times);
+            this.username = null;
+        }
+
+        // one caregiver's row on one date, booked out or not
+        public AvailabilityGetter(String username, Date time) {
+            this.times = Collections.singletonList(time);
+            this.username = username;
+        }
+
+        // every availability with a free slot on the date(s), or the one caregiver's row
+        public List<Availability> get() throws SQLException {
+            List<Availability> availabilities = new ArrayList<>();
+            if (this.times.isEmpty()) {
+                return availabilities;
+            }
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String getAvailabilities = "SELECT Time, Username, Version, StartMinute, EndMinute, SlotMinutes, " +
+                    "Booked FROM Availabilities WHERE " + (this.username != null ? "Username = ?" : "FreeSlots > 0") +
+                    " AND Time IN (" + String.join(", ", Collections.nCopies(this.times.size(), "?")) + ")";
+            try {
+                PreparedStatement statement = con.prepareStatement(getAvailabilities);
+                int parameter = 1;
+                if (this.username != null) {
+                    statement.setString(parameter++, this.username);
+                }
+                for (Date time : this.times) {
+                    statement.setDate(parameter++, time);
+                }
+                ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    availabilities.add(new Availability(resultSet));
+                }
+                return availabilities;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+    }
+}
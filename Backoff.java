@@ -0,0 +1,34 @@
+package scheduler.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class Backoff {
+
+    private final long baseMillis;
+    private final long maxMillis;
+    private final int maxAttempts;
+
+    public Backoff(long baseMillis, long maxMillis, int maxAttempts) {
+        if (baseMillis <= 0 || maxMillis < baseMillis || maxAttempts <= 0) {
+            throw new IllegalArgumentException("Invalid backoff settings!");
+        }
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    // sleeps before retrying after the given (1-based) failed attempt, with full jitter so that
+    // callers that collided once don't collide again on the next try
+    public void pause(int attempt) {
+        long cap = Math.min(maxMillis, baseMillis << Math.min(attempt - 1, 20));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
 import scheduler.util.Util;
 
 import java.sql.*;
@@ -40,7 +41,7 @@ public class Caregiver {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
+        String addCaregiver = "INSERT INTO Caregivers (Username, Salt, Hash) VALUES (? , ?, ?)";
         try {
             PreparedStatement statement = con.prepareStatement(addCaregiver);
             statement.setString(1, this.username);
@@ -51,18 +52,56 @@ public class Caregiver {
             throw new SQLException();
         } finally {
             cm.closeConnection();
+            ModelCache.CAREGIVER_NAMES.invalidate(this.username);
         }
     }
 
+    // the whole day as a single slot
     public void uploadAvailability(Date d) throws SQLException {
+        uploadAvailability(d, new SlotMap(0, SlotMap.MINUTES_PER_DAY, SlotMap.MINUTES_PER_DAY));
+    }
+
+    // a working window on the day, split into slots that are booked one appointment each
+    public void uploadAvailability(Date d, SlotMap slots) throws SQLException {
+        Retry.run(() -> insertAvailability(d, slots));
+    }
+
+    private Void insertAvailability(Date d, SlotMap slots) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
+        String addAvailability = "INSERT INTO Availabilities (Time, Username, StartMinute, EndMinute, SlotMinutes, " +
+                "FreeSlots) VALUES (? , ?, ?, ?, ?, ?)";
         try {
+            con.setAutoCommit(false);
             PreparedStatement statement = con.prepareStatement(addAvailability);
             statement.setDate(1, d);
             statement.setString(2, this.username);
+            statement.setInt(3, slots.getStartMinute());
+            statement.setInt(4, slots.getEndMinute());
+            statement.setInt(5, slots.getSlotMinutes());
+            statement.setInt(6, slots.getFreeSlots());
+            statement.executeUpdate();
+            Utilization.addCaregiver(con, d, this.username, slots.getSlotCount(), 0);
+            IdempotencyKeys.store(con);
+            con.commit();
+            return null;
+        } finally {
+            cm.closeConnection();
+            ModelCache.invalidateAvailability(d);
+        }
+    }
+
+    // ties the caregiver to a clinic site, every availability they upload is at that site
+    public void assignSite(String site) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String setSite = "UPDATE Caregivers SET Site = ? WHERE Username = ?";
+        try {
+            PreparedStatement statement = con.prepareStatement(setSite);
+            statement.setString(1, site);
+            statement.setString(2, this.username);
             statement.executeUpdate();
         } catch (SQLException e) {
             throw new SQLException();
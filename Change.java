@@ -0,0 +1,37 @@
+package scheduler.feed;
+
+// one changed row as reported by a ChangeSource: the table and the part of its key the local read models are
+// keyed by (the vaccine name, the availability's date, a username or a site name)
+public class Change {
+    private final long version;
+    private final String table;
+    private final String key;
+
+    public Change(long version, String table, String key) {
+        this.version = version;
+        this.table = table;
+        this.key = key;
+    }
+
+    // Getters
+    public long getVersion() {
+        return version;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "Change{" +
+                "version=" + version +
+                ", table='" + table + '\'' +
+                ", key='" + key + '\'' +
+                '}';
+    }
+}
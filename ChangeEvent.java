@@ -0,0 +1,115 @@
+package scheduler.events;
+
+import scheduler.model.Appointment;
+import scheduler.model.SlotMap;
+import scheduler.protocol.JsonLine;
+
+import java.sql.Date;
+import java.util.concurrent.TimeUnit;
+
+// one pre-allocated slot of the EventRing, publishers overwrite the fields in place instead of allocating events
+public class ChangeEvent {
+
+    public enum Type {
+        APPOINTMENT_CREATED, AVAILABILITY_REMOVED, DOSES_ADDED, APPOINTMENT_CANCELLED
+    }
+
+    private Type type;
+    private int appointmentId;
+    private String vaccineName;
+    private String caregiverName;
+    private String patientName;
+    // the appointment or availability date in epoch millis, -1 if the event has none
+    private long date;
+    // start minute of the slot on that date, or Appointment.WHOLE_DAY, as in Appointments.Slot
+    private int slot;
+    private int doses;
+    private long publishedAt;
+
+    void set(Type type, int appointmentId, String vaccineName, String caregiverName, String patientName,
+             long date, int slot, int doses) {
+        this.type = type;
+        this.appointmentId = appointmentId;
+        this.vaccineName = vaccineName;
+        this.caregiverName = caregiverName;
+        this.patientName = patientName;
+        this.date = date;
+        this.slot = slot;
+        this.doses = doses;
+        this.publishedAt = System.currentTimeMillis();
+    }
+
+    // Getters
+    public Type getType() {
+        return type;
+    }
+
+    public int getAppointmentId() {
+        return appointmentId;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public String getCaregiverName() {
+        return caregiverName;
+    }
+
+    public String getPatientName() {
+        return patientName;
+    }
+
+    public long getDate() {
+        return date;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    // the start of the slot in epoch millis, -1 if the event has no date
+    public long getTime() {
+        return date < 0 ? -1 : date + TimeUnit.MINUTES.toMillis(Appointment.startMinute(slot));
+    }
+
+    public int getDoses() {
+        return doses;
+    }
+
+    public long getPublishedAt() {
+        return publishedAt;
+    }
+
+    // one JSON object per line, only ever called on the subscriber side
+    public String toJson(long sequence) {
+        StringBuilder sb = new StringBuilder(160);
+        sb.append("{\"sequence\":").append(sequence)
+                .append(",\"type\":\"").append(type).append('"')
+                .append(",\"publishedAt\":").append(publishedAt);
+        if (appointmentId > 0) {
+            sb.append(",\"appointmentId\":").append(appointmentId);
+        }
+        appendString(sb, "vaccine", vaccineName);
+        appendString(sb, "caregiver", caregiverName);
+        appendString(sb, "patient", patientName);
+        if (date >= 0) {
+            sb.append(",\"date\":\"").append(new Date(date)).append('"');
+            if (slot != Appointment.WHOLE_DAY) {
+                sb.append(",\"time\":\"").append(SlotMap.formatMinute(slot)).append('"');
+            }
+        }
+        if (doses != 0) {
+            sb.append(",\"doses\":").append(doses);
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void appendString(StringBuilder sb, String key, String value) {
+        if (value == null) {
+            return;
+        }
+        sb.append(",\"").append(key).append("\":");
+        JsonLine.appendString(sb, value);
+    }
+}
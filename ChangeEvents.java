@@ -0,0 +1,34 @@
+package scheduler.events;
+
+import java.io.IOException;
+
+public class ChangeEvents {
+
+    private static final int ringSize = System.getenv("EventRingSize") == null ? 4096 :
+            Integer.parseInt(System.getenv("EventRingSize"));
+
+    // the ring every command handler publishes to
+    public static final EventRing RING = new EventRing(ringSize);
+    // the cheapest way to answer "how many bookings so far", subscribed when EventAggregate is true
+    public static final AggregatingEventSink AGGREGATE = new AggregatingEventSink();
+
+    // subscribes the sinks configured through EventAggregate, EventFile and EventPort (a port on localhost).
+    // Each sink gets its own thread, so one that isn't configured isn't started, and with none the ring is skipped
+    public static void startSubscribers() {
+        if (Boolean.parseBoolean(System.getenv("EventAggregate"))) {
+            RING.subscribe("aggregate", AGGREGATE);
+        }
+        String file = System.getenv("EventFile");
+        if (file != null) {
+            try {
+                RING.subscribe("file", new FileEventSink(file));
+            } catch (IOException e) {
+                System.out.println("Error occurred when opening event file " + file + ": " + e);
+            }
+        }
+        String port = System.getenv("EventPort");
+        if (port != null) {
+            RING.subscribe("socket", new SocketEventSink("localhost", Integer.parseInt(port)));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package scheduler.feed;
+
+import scheduler.db.ReplicaRouter;
+import scheduler.geo.SiteIndex;
+import scheduler.model.DoseLots;
+import scheduler.model.ModelCache;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the local read models (ModelCache, SiteIndex, DoseLots) in step with writes made by other Scheduler nodes.
+ *
+ * Every ChangeFeedMillis the feed asks its ChangeSource for the changes since the last version it applied and drops
+ * exactly the cached entries they touch, the next read of those loads them again. Entries nobody changed are served
+ * locally, at most one poll behind the database. The lag metric is the time since the start of the last successful
+ * poll: everything committed before then is reflected locally.
+ *
+ * If the source cleaned up changes the feed has not seen yet (a node that was down for longer than the retention
+ * period), or polls fail for longer than ChangeFeedMaxLagMillis, the feed cannot tell what changed and drops every
+ * cached entry, so staleness stays bounded even then.
+ */
+public class ChangeFeed {
+
+    private static volatile ChangeFeed running = null;
+
+    private final ChangeSource source;
+    private final long maxLagNanos;
+
+    // only written by the polling thread
+    private volatile long lastVersion = -1;
+    private boolean failing = false;
+
+    private volatile long syncedAt;
+    private volatile long polls = 0;
+    private volatile long applied = 0;
+    private volatile long resyncs = 0;
+    private volatile long failures = 0;
+
+    public ChangeFeed(ChangeSource source, long maxLagMillis) {
+        this.source = source;
+        this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+        this.syncedAt = System.nanoTime();
+    }
+
+    // when ChangeFeedMillis is set, tails SQL Server change tracking at that interval
+    public static void startIfConfigured() {
+        String interval = System.getenv("ChangeFeedMillis");
+        if (interval == null) {
+            return;
+        }
+        long intervalMillis = Long.parseLong(interval);
+        String maxLag = System.getenv("ChangeFeedMaxLagMillis");
+        ChangeFeed feed = new ChangeFeed(new ChangeTrackingSource(),
+                maxLag == null ? 10 * intervalMillis : Long.parseLong(maxLag));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "change-feed");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(feed::poll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        running = feed;
+    }
+
+    // the feed started by startIfConfigured, null if there is none
+    public static ChangeFeed getRunning() {
+        return running;
+    }
+
+    // one round: read the current version, then apply everything after the last one
+    public void poll() {
+        long started = System.nanoTime();
+        try {
+            long current = source.currentVersion();
+            if (lastVersion < 0 || lastVersion < source.minValidVersion()) {
+                // first poll, or changes were lost: nothing cached before now can be trusted
+                if (lastVersion >= 0) {
+                    resyncs++;
+                }
+                invalidateAll();
+            } else {
+                List<Change> changes = source.changesSince(lastVersion);
+                if (!changes.isEmpty()) {
+                    // cache loads must not read these back from a replica that does not have them yet
+                    ReplicaRouter.changedElsewhere();
+                }
+                for (Change change : changes) {
+                    apply(change);
+                }
+                applied += changes.size();
+            }
+            lastVersion = current;
+            syncedAt = started;
+            polls++;
+            failing = false;
+        } catch (SQLException | RuntimeException e) {
+            failures++;
+            if (!failing) {
+                System.out.println("Error occurred when polling the change feed: " + e);
+                failing = true;
+            }
+            if (System.nanoTime() - syncedAt > maxLagNanos) {
+                invalidateAll();
+            }
+        }
+    }
+
+    private static void apply(Change change) {
+        switch (change.getTable()) {
+            case "Vaccines":
+                ModelCache.invalidateVaccine(change.getKey());
+                break;
+            case "Availabilities":
+                ModelCache.invalidateAvailability(Date.valueOf(change.getKey()));
+                break;
+            case "Caregivers":
+                // a new caregiver, or one that moved to another site
+                ModelCache.CAREGIVER_NAMES.invalidate(change.getKey());
+                SiteIndex.invalidate();
+                break;
+            case "Patients":
+                ModelCache.PATIENT_NAMES.invalidate(change.getKey());
+                break;
+            case "Sites":
+                SiteIndex.invalidate();
+                break;
+            case "DoseLots":
+                // a lot is reported by its vaccine, the lots are loaded per vaccine
+                DoseLots.invalidate(change.getKey());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void invalidateAll() {
+        ModelCache.invalidateAll();
+        DoseLots.invalidateAll();
+        SiteIndex.invalidate();
+    }
+
+    // how far behind the database the local read models may be
+    public long getLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - syncedAt);
+    }
+
+    public long getLastVersion() {
+        return lastVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "change feed: lag " + getLagMillis() + " ms, version " + lastVersion + ", " + polls + " polls, " +
+                applied + " changes applied, " + resyncs + " resyncs, " + failures + " failed polls";
+    }
+}
@@ -0,0 +1,17 @@
+package scheduler.feed;
+
+import java.sql.SQLException;
+import java.util.List;
+
+// a monotonically versioned log of row changes that every node can tail
+public interface ChangeSource {
+
+    // the version of the latest committed change
+    long currentVersion() throws SQLException;
+
+    // the oldest version changesSince can still start from, older changes have been cleaned up
+    long minValidVersion() throws SQLException;
+
+    // changes with a version greater than the given one, in any order
+    List<Change> changesSince(long version) throws SQLException;
+}
@@ -0,0 +1,85 @@
+package scheduler.feed;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+// SQL Server change tracking on the tables other nodes keep read models of, see migrations.sql. Versions are
+// assigned at commit, so every change a poll has not seen yet has a version above the last one it read
+public class ChangeTrackingSource implements ChangeSource {
+
+    private static final String[] TABLES = {"Vaccines", "Availabilities", "Caregivers", "Patients", "Sites",
+            "DoseLots"};
+
+    @Override
+    public long currentVersion() throws SQLException {
+        return selectVersion("SELECT CHANGE_TRACKING_CURRENT_VERSION() AS Version");
+    }
+
+    @Override
+    public long minValidVersion() throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT MAX(v) AS Version FROM (VALUES ");
+        for (int i = 0; i < TABLES.length; i++) {
+            sql.append(i > 0 ? ", " : "").append("(CHANGE_TRACKING_MIN_VALID_VERSION(OBJECT_ID('")
+                    .append(TABLES[i]).append("')))");
+        }
+        return selectVersion(sql.append(") AS t(v)").toString());
+    }
+
+    private static long selectVersion(String sql) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        try {
+            PreparedStatement statement = con.prepareStatement(sql);
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            long version = resultSet.getLong("Version");
+            if (resultSet.wasNull()) {
+                throw new SQLException("Change tracking is not enabled on the database");
+            }
+            return version;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public List<Change> changesSince(long version) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        // one round trip for all tables, an availability is reported by its date (style 23 is YYYY-MM-DD)
+        String getChanges = "SELECT 'Vaccines' AS TableName, SYS_CHANGE_VERSION AS Version, Name AS ChangedKey " +
+                "FROM CHANGETABLE(CHANGES Vaccines, ?) AS c " +
+                "UNION ALL SELECT 'Availabilities', SYS_CHANGE_VERSION, CONVERT(varchar(10), Time, 23) " +
+                "FROM CHANGETABLE(CHANGES Availabilities, ?) AS c " +
+                "UNION ALL SELECT 'Caregivers', SYS_CHANGE_VERSION, Username " +
+                "FROM CHANGETABLE(CHANGES Caregivers, ?) AS c " +
+                "UNION ALL SELECT 'Patients', SYS_CHANGE_VERSION, Username " +
+                "FROM CHANGETABLE(CHANGES Patients, ?) AS c " +
+                "UNION ALL SELECT 'Sites', SYS_CHANGE_VERSION, Name FROM CHANGETABLE(CHANGES Sites, ?) AS c " +
+                "UNION ALL SELECT 'DoseLots', SYS_CHANGE_VERSION, Vaccine_Name " +
+                "FROM CHANGETABLE(CHANGES DoseLots, ?) AS c";
+        try {
+            PreparedStatement statement = con.prepareStatement(getChanges);
+            for (int i = 1; i <= TABLES.length; i++) {
+                statement.setLong(i, version);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            List<Change> changes = new ArrayList<>();
+            while (resultSet.next()) {
+                changes.add(new Change(resultSet.getLong("Version"), resultSet.getString("TableName"),
+                        resultSet.getString("ChangedKey")));
+            }
+            return changes;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
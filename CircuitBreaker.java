@@ -0,0 +1,110 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for the database link.
+ *
+ * CLOSED: calls go through, consecutive connection failures are counted. After failureThreshold of them the breaker
+ * goes OPEN and every call fails at once with a DatabaseUnavailableException instead of waiting out login and query
+ * timeouts. Once openMillis have passed the breaker goes HALF_OPEN and lets a single probe call through: its success
+ * closes the breaker, its failure opens it for another openMillis. Only failures of the link itself count (lost
+ * connections, login failures, timeouts), a constraint violation says nothing about the database being reachable.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+    // when the probe of the current half-open period was let through, a probe that never reports back is replaced
+    // by a new one after another openMillis
+    private long probeStartedAt = 0;
+
+    private long rejected = 0;
+    private long trips = 0;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        if (failureThreshold <= 0 || openMillis <= 0) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings!");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    // call before touching the database, throws while the breaker is open
+    public synchronized void beforeCall() throws DatabaseUnavailableException {
+        long now = System.nanoTime();
+        if (state == State.OPEN && now - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+            probeStartedAt = now;
+            return;
+        }
+        if (state == State.HALF_OPEN && now - probeStartedAt >= openNanos) {
+            probeStartedAt = now;
+            return;
+        }
+        if (state != State.CLOSED) {
+            rejected++;
+            throw new DatabaseUnavailableException("The database is unavailable, retrying in at most " +
+                    TimeUnit.NANOSECONDS.toMillis(openNanos) + " ms");
+        }
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+            trips++;
+        }
+    }
+
+    // reports the outcome of a failed call, returns true if it was a failure of the link
+    public boolean onFailure(SQLException e) {
+        if (!isConnectionFailure(e)) {
+            return false;
+        }
+        onFailure();
+        return true;
+    }
+
+    // SQL state class 08 is a connection exception
+    public static boolean isConnectionFailure(SQLException e) {
+        if (e instanceof DatabaseUnavailableException || e instanceof DeadlineExceededException) {
+            return false;
+        }
+        return e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException ||
+                e instanceof SQLTimeoutException || (e.getSQLState() != null && e.getSQLState().startsWith("08"));
+    }
+
+    // true while calls would be rejected, without taking the half-open probe
+    public synchronized boolean isRejecting() {
+        return state == State.OPEN && System.nanoTime() - openedAt < openNanos;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "database " + state + ": " + failures + " consecutive failures, " + trips + " trips, " + rejected +
+                " calls rejected";
+    }
+}
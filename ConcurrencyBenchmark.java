@@ -0,0 +1,190 @@
+package scheduler.bench;
+
+import scheduler.db.ConnectionManager;
+import scheduler.model.Availability;
+import scheduler.model.ConcurrencyControl;
+import scheduler.model.Vaccine;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares optimistic (row version compare-and-set) and pessimistic (UPDLOCK) concurrency control under contention.
+ *
+ * Usage: ConcurrencyBenchmark [threads] [seconds] [availabilities]
+ *
+ * Every thread hammers the same Vaccines row with add/remove dose updates, then races for a pool of availabilities
+ * on a single date. Each mode reports its throughput and checks that no update was lost and no availability was
+ * handed out twice.
+ */
+public class ConcurrencyBenchmark {
+
+    private static final int INITIAL_DOSES = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int availabilities = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        for (ConcurrencyControl.Mode mode : ConcurrencyControl.Mode.values()) {
+            ConcurrencyControl.setMode(mode);
+            String prefix = "ccb" + Long.toString(System.currentTimeMillis(), 36) + "_";
+            System.out.println("== " + mode + " with " + threads + " threads");
+            benchmarkDoses(prefix + "v", threads, seconds);
+            benchmarkAvailabilities(prefix, threads, availabilities);
+        }
+    }
+
+    private static void benchmarkDoses(String vaccineName, int threads, int seconds) throws Exception {
+        new Vaccine.VaccineBuilder(vaccineName, INITIAL_DOSES).build().saveToDB();
+        AtomicLong net = new AtomicLong();
+        AtomicLong updates = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        long conflictsBefore = ConcurrencyControl.getConflicts();
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> {
+                while (System.nanoTime() < end) {
+                    try {
+                        Vaccine vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+                        if (ThreadLocalRandom.current().nextBoolean()) {
+                            vaccine.increaseAvailableDoses(1);
+                            net.incrementAndGet();
+                        } else {
+                            vaccine.decreaseAvailableDoses(1);
+                            net.decrementAndGet();
+                        }
+                        updates.incrementAndGet();
+                    } catch (SQLException | RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        int doses = selectDoses(vaccineName);
+        long expected = INITIAL_DOSES + net.get();
+        System.out.printf("doses:          %8.1f updates/s, %d updates, %d failed, %d conflicts, %s%n",
+                updates.get() / elapsed, updates.get(), failures.get(),
+                ConcurrencyControl.getConflicts() - conflictsBefore,
+                doses == expected ? "no lost updates" : "LOST UPDATES (" + doses + " != " + expected + ")");
+        execute("DELETE FROM Vaccines WHERE Name = ?", vaccineName);
+    }
+
+    private static void benchmarkAvailabilities(String prefix, int threads, int availabilities) throws Exception {
+        Date date = Date.valueOf(LocalDate.now().plusYears(10));
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement =
+                    con.prepareStatement("INSERT INTO Availabilities (Time, Username) VALUES (?, ?)");
+            for (int i = 0; i < availabilities; i++) {
+                statement.setDate(1, date);
+                statement.setString(2, prefix + "c" + i);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            con.commit();
+        } finally {
+            cm.closeConnection();
+        }
+
+        Set<String> claimed = ConcurrentHashMap.newKeySet();
+        AtomicLong duplicates = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        long conflictsBefore = ConcurrencyControl.getConflicts();
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> {
+                while (true) {
+                    try {
+                        Availability availability = claim(date, prefix);
+                        if (availability == null) {
+                            return;
+                        }
+                        if (!claimed.add(availability.getUsername())) {
+                            duplicates.incrementAndGet();
+                        }
+                    } catch (SQLException | RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.MINUTES);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("availabilities: %8.1f claims/s, %d claimed, %d failed, %d conflicts, %s%n",
+                claimed.size() / elapsed, claimed.size(), failures.get(),
+                ConcurrencyControl.getConflicts() - conflictsBefore,
+                duplicates.get() == 0 ? "no double claims" : "DOUBLE CLAIMS (" + duplicates.get() + ")");
+        execute("DELETE FROM Availabilities WHERE Username LIKE ?", prefix + "%");
+    }
+
+    // one claim attempt the way reserve makes it, null once the date is sold out
+    private static Availability claim(Date date, String prefix) throws SQLException {
+        if (ConcurrencyControl.getMode() == ConcurrencyControl.Mode.PESSIMISTIC) {
+            return Availability.claimLocked(date, 0);
+        }
+        while (true) {
+            List<Availability> candidates = new Availability.AvailabilityGetter(date).get();
+            candidates.removeIf(a -> !a.getUsername().startsWith(prefix));
+            if (candidates.isEmpty()) {
+                return null;
+            }
+            Availability candidate = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+            if (candidate.claim(candidate.firstFree(0))) {
+                return candidate;
+            }
+            ConcurrencyControl.recordConflict();
+        }
+    }
+
+    private static int selectDoses(String vaccineName) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement("SELECT Doses FROM Vaccines WHERE Name = ?");
+            statement.setString(1, vaccineName);
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            return resultSet.getInt("Doses");
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void execute(String sql, String param) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement(sql);
+            statement.setString(1, param);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package scheduler.model;
+
+import scheduler.util.Backoff;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConcurrencyControl {
+
+    // OPTIMISTIC writes compare the row version they read and retry on conflict,
+    // PESSIMISTIC takes an update lock on the row before reading it
+    public enum Mode {
+        OPTIMISTIC, PESSIMISTIC
+    }
+
+    private static volatile Mode mode = System.getenv("ConcurrencyMode") == null ? Mode.OPTIMISTIC :
+            Mode.valueOf(System.getenv("ConcurrencyMode").toUpperCase());
+
+    public static final Backoff BACKOFF = new Backoff(5, 200, 8);
+
+    private static final AtomicLong conflicts = new AtomicLong();
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    public static void setMode(Mode mode) {
+        ConcurrencyControl.mode = mode;
+    }
+
+    public static void recordConflict() {
+        conflicts.incrementAndGet();
+    }
+
+    public static long getConflicts() {
+        return conflicts.get();
+    }
+}
@@ -0,0 +1,13 @@
+package scheduler.model;
+
+import java.sql.SQLTransientException;
+
+// thrown when an optimistic update keeps losing to concurrent writers after all of its retries
+public class ConcurrentUpdateException extends SQLTransientException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ConcurrentUpdateException(String reason) {
+        super(reason);
+    }
+}
@@ -6,36 +6,160 @@ import java.sql.SQLException;
 
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    // DBProfile=embedded runs against a local H2 file database in SQL Server mode instead of Azure SQL, for
+    // offline kiosks and demos. The schema is created once per process from embedded-schema.sql on the classpath
+    private static final boolean embedded = "embedded".equals(System.getenv("DBProfile"));
+    private static final String driverName = embedded ? "org.h2.Driver" :
+            "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    private static final String connectionUrl = embedded ?
+            "jdbc:h2:" + (System.getenv("EmbeddedDB") == null ? "./scheduler" : System.getenv("EmbeddedDB")) +
+                    ";MODE=MSSQLServer;NON_KEYWORDS=DAY" :
+            "jdbc:sqlserver://" + System.getenv("Server") + ".database.windows.net:1433;database=" +
+                    System.getenv("DBName");
+    private static final String userName = embedded ? "sa" : System.getenv("UserID");
+    private static final String userPass = embedded ? "" : System.getenv("Password");
 
-    private Connection con = null;
+    // connections are shared by every ConnectionManager so that concurrent queries don't each pay for a login
+    private static final int poolSize = System.getenv("PoolSize") == null ? 8 :
+            Integer.parseInt(System.getenv("PoolSize"));
+    // every timeout bounds how long a command can wait on a database that is slow or gone
+    private static final int loginTimeoutSeconds = getenv("LoginTimeoutSeconds", 5);
+    private static final int queryTimeoutSeconds = getenv("QueryTimeoutSeconds", 30);
+    private static final CircuitBreaker breaker = new CircuitBreaker(getenv("BreakerFailures", 5),
+            getenv("BreakerOpenMillis", 5000));
+    private static final ConnectionPool pool = new ConnectionPool(connectionUrl, userName, userPass, poolSize, breaker,
+            getenv("PoolTimeoutMillis", 5000));
 
-    public ConnectionManager() {
+    // an optional replica for reads, with its own pool and breaker so a replica outage leaves the primary alone.
+    // ReplicaUrl is any JDBC URL (a second local instance for testing), ReadReplica=true uses the readable secondary
+    // of the primary's Azure database. ReplicaUserID and ReplicaPassword default to the primary's login
+    private static final String replicaUrl = System.getenv("ReplicaUrl") != null ? System.getenv("ReplicaUrl") :
+            "true".equals(System.getenv("ReadReplica")) ? connectionUrl + ";applicationIntent=ReadOnly" : null;
+    private static final CircuitBreaker replicaBreaker = replicaUrl == null ? null :
+            new CircuitBreaker(getenv("BreakerFailures", 5), getenv("BreakerOpenMillis", 5000));
+    private static final ConnectionPool replicaPool = replicaUrl == null ? null : new ConnectionPool(replicaUrl,
+            System.getenv("ReplicaUserID") == null ? userName : System.getenv("ReplicaUserID"),
+            System.getenv("ReplicaPassword") == null ? userPass : System.getenv("ReplicaPassword"),
+            getenv("ReplicaPoolSize", poolSize), replicaBreaker, getenv("PoolTimeoutMillis", 5000));
+
+    // where the queries of a ConnectionManager may run
+    public enum Route {
+        // writes, and reads that must see everything committed
+        PRIMARY,
+        // reads for the session running the command, the replica once it has the session's own writes
+        SESSION_READ,
+        // reads that fill caches every session shares, the replica once it has every write of this node
+        SHARED_READ
+    }
+
+    static {
+        // loaded once per process rather than once per query. The name is only known at run time, so native
+        // images list both drivers in META-INF/native-image/scheduler/reflect-config.json
         try {
             Class.forName(driverName);
         } catch (ClassNotFoundException e) {
             System.out.println(e.toString());
         }
+        DriverManager.setLoginTimeout(loginTimeoutSeconds);
+        // before the first pooled connection, connections opened side by side would each run the script
+        if (embedded) {
+            try (Connection con = DriverManager.getConnection(connectionUrl +
+                    ";INIT=RUNSCRIPT FROM 'classpath:embedded-schema.sql'", userName, userPass)) {
+                con.isValid(0);
+            } catch (SQLException e) {
+                System.out.println("Error occurred when creating the embedded schema: " + e);
+            }
+        }
+        if (replicaPool != null) {
+            ReplicaRouter.start();
+        }
     }
 
-    public Connection createConnection() {
-        try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private final Route route;
+    // set for ReplicaRouter's heartbeat, which neither counts as a write nor falls back to the other server
+    private final boolean heartbeat;
+    private final boolean heartbeatOnReplica;
+    private GuardedConnection con = null;
+    private boolean onReplica = false;
+
+    public ConnectionManager() {
+        this(Route.PRIMARY);
+    }
+
+    public ConnectionManager(Route route) {
+        this(route, false, false);
+    }
+
+    private ConnectionManager(Route route, boolean heartbeat, boolean heartbeatOnReplica) {
+        this.route = route;
+        this.heartbeat = heartbeat;
+        this.heartbeatOnReplica = heartbeatOnReplica;
+    }
+
+    static ConnectionManager forHeartbeat(boolean onReplica) {
+        return new ConnectionManager(Route.PRIMARY, true, onReplica);
+    }
+
+    private static int getenv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public static int getPoolSize() {
+        return poolSize;
+    }
+
+    public static CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    public static boolean isEmbedded() {
+        return embedded;
+    }
+
+    // a primary key or unique index violation: 2627 and 2601 on SQL Server, 23505 on H2
+    public static boolean isDuplicateKey(SQLException e) {
+        return e.getErrorCode() == 2627 || e.getErrorCode() == 2601 || "23505".equals(e.getSQLState());
+    }
+
+    public static boolean hasReplica() {
+        return replicaPool != null;
+    }
+
+    // throws instead of returning null, a DatabaseUnavailableException right away while the breaker is open
+    public Connection createConnection() throws SQLException {
+        if (heartbeat) {
+            onReplica = heartbeatOnReplica;
+            con = GuardedConnection.wrap(onReplica ? replicaPool.acquire() : pool.acquire(),
+                    onReplica ? replicaBreaker : breaker, queryTimeoutSeconds, false);
+            return con.getProxy();
+        }
+        if (route != Route.PRIMARY && replicaPool != null && ReplicaRouter.canRead(route == Route.SHARED_READ)) {
+            try {
+                con = GuardedConnection.wrap(replicaPool.acquire(), replicaBreaker, queryTimeoutSeconds, false);
+                onReplica = true;
+                return con.getProxy();
+            } catch (DeadlineExceededException e) {
+                throw e;
+            } catch (SQLException e) {
+                // the replica is down or out of connections, the primary serves the read
+                ReplicaRouter.fellBack();
+            }
         }
-        return con;
+        con = GuardedConnection.wrap(pool.acquire(), breaker, queryTimeoutSeconds, true);
+        onReplica = false;
+        return con.getProxy();
     }
 
     public void closeConnection() {
-        try {
-            this.con.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        if (this.con != null) {
+            ConnectionPool from = onReplica ? replicaPool : pool;
+            if (this.con.isBroken()) {
+                from.discard(this.con.getConnection());
+            } else {
+                from.release(this.con.getConnection());
+            }
+            this.con = null;
         }
     }
 }
@@ -0,0 +1,111 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionPool {
+
+    private final String connectionUrl;
+    private final String userName;
+    private final String userPass;
+
+    // idle connections ready to be handed out, and one permit for every connection that may be checked out
+    private final BlockingQueue<Connection> idle;
+    private final Semaphore permits;
+    // fail fast instead of queueing for minutes when the database is down or every connection is stuck
+    private final CircuitBreaker breaker;
+    private final long timeoutMillis;
+
+    public ConnectionPool(String connectionUrl, String userName, String userPass, int size, CircuitBreaker breaker,
+                          long timeoutMillis) {
+        if (size <= 0 || timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Pool size and timeout must be positive!");
+        }
+        this.connectionUrl = connectionUrl;
+        this.userName = userName;
+        this.userPass = userPass;
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.permits = new Semaphore(size, true);
+        this.breaker = breaker;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public Connection acquire() throws SQLException {
+        breaker.beforeCall();
+        // the wait for a connection counts against the command's deadline as well
+        Deadline deadline = Deadline.current();
+        long waitMillis = timeoutMillis;
+        if (deadline != null) {
+            deadline.check();
+            waitMillis = Math.min(waitMillis, deadline.remainingMillis());
+        }
+        try {
+            if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                if (waitMillis < timeoutMillis) {
+                    throw deadline.exceeded(null);
+                }
+                throw new SQLTransientConnectionException("Timed out after " + timeoutMillis +
+                        " ms waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection");
+        }
+        try {
+            Connection con;
+            while ((con = idle.poll()) != null) {
+                if (!con.isClosed()) {
+                    return con;
+                }
+            }
+            // the login timeout is set once for DriverManager by ConnectionManager
+            con = DriverManager.getConnection(connectionUrl, userName, userPass);
+            breaker.onSuccess();
+            return con;
+        } catch (SQLException e) {
+            permits.release();
+            breaker.onFailure();
+            throw e;
+        }
+    }
+
+    public void release(Connection con) {
+        try {
+            if (con.isClosed()) {
+                return;
+            }
+            // never hand out a connection that is still inside someone else's transaction
+            if (!con.getAutoCommit()) {
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+            if (!idle.offer(con)) {
+                con.close();
+            }
+        } catch (SQLException e) {
+            closeQuietly(con);
+        } finally {
+            permits.release();
+        }
+    }
+
+    // for a connection that failed, it is closed rather than handed out again
+    public void discard(Connection con) {
+        closeQuietly(con);
+        permits.release();
+    }
+
+    private static void closeQuietly(Connection con) {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            // the connection is unusable either way
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package scheduler.db;
+
+import java.sql.SQLTransientConnectionException;
+
+// thrown without touching the database while the circuit breaker is open
+public class DatabaseUnavailableException extends SQLTransientConnectionException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DatabaseUnavailableException(String reason) {
+        super(reason, "08001");
+    }
+}
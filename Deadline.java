@@ -0,0 +1,203 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latency budget of one command.
+ *
+ * Scheduler.execute starts one per command and binds it to the thread, AsyncQuery carries it over to the queries
+ * it runs for the command, so the handlers and model classes do not pass it along themselves. Every database call
+ * made under it is bounded by what is left of the budget: waiting for a pooled connection, the query timeout of
+ * each statement, and statements still running when the budget runs out are cancelled. CommandBudgetMillis sets the
+ * budget of every command (default 10000), CommandBudgets overrides single commands, e.g.
+ * "reserve:3000,search_caregiver_schedule:1000".
+ *
+ * Commands that finish after their budget count as misses, per command, see stats().
+ */
+public class Deadline implements AutoCloseable {
+
+    private static final long defaultBudgetMillis = System.getenv("CommandBudgetMillis") == null ? 10_000 :
+            Long.parseLong(System.getenv("CommandBudgetMillis"));
+    private static final Map<String, Long> budgets = parseBudgets(System.getenv("CommandBudgets"));
+
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+    private static final Map<String, LongAdder[]> outcomes = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService canceller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "deadline-canceller");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String operation;
+    private final long budgetMillis;
+    private final long startedAt;
+    private final long expiresAt;
+    // statements executing under this deadline right now, cancelled when it expires
+    private final Set<Statement> running = new HashSet<>();
+    private final ScheduledFuture<?> cancelTask;
+    private final Deadline previous;
+    private volatile boolean cut = false;
+    private boolean counted = true;
+
+    private Deadline(String operation, long budgetMillis) {
+        this.operation = operation;
+        this.budgetMillis = budgetMillis;
+        this.startedAt = System.nanoTime();
+        this.expiresAt = startedAt + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.previous = current.get();
+        this.cancelTask = canceller.schedule(this::cancelRunning, budgetMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static Map<String, Long> parseBudgets(String value) {
+        Map<String, Long> budgets = new ConcurrentHashMap<>();
+        if (value != null) {
+            for (String entry : value.split(",")) {
+                String[] kv = entry.split(":");
+                budgets.put(kv[0].trim(), Long.parseLong(kv[1].trim()));
+            }
+        }
+        return budgets;
+    }
+
+    // starts the budget of a command and binds it to the calling thread until close
+    public static Deadline start(String operation) {
+        Deadline deadline = new Deadline(operation, budgets.getOrDefault(operation, defaultBudgetMillis));
+        current.set(deadline);
+        return deadline;
+    }
+
+    // the deadline of the command running on this thread, null outside of commands
+    public static Deadline current() {
+        return current.get();
+    }
+
+    // runs a task of the deadline's command on another thread, used by AsyncQuery
+    static <T> T runUnder(Deadline deadline, AsyncQuery.Query<T> query) throws SQLException {
+        Deadline outer = current.get();
+        current.set(deadline);
+        try {
+            return query.run();
+        } finally {
+            current.set(outer);
+        }
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getBudgetMillis() {
+        return budgetMillis;
+    }
+
+    public long remainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime());
+    }
+
+    public boolean isExpired() {
+        return System.nanoTime() - expiresAt >= 0;
+    }
+
+    // true if the deadline stopped a database call of the command, its result is incomplete
+    public boolean wasCut() {
+        return cut;
+    }
+
+    // throws once the budget is used up, called before each database call
+    public void check() throws DeadlineExceededException {
+        if (isExpired()) {
+            throw exceeded(null);
+        }
+    }
+
+    DeadlineExceededException exceeded(SQLException cause) {
+        cut = true;
+        DeadlineExceededException e = new DeadlineExceededException(operation + " exceeded its budget of " +
+                budgetMillis + " ms");
+        if (cause != null) {
+            e.initCause(cause);
+        }
+        return e;
+    }
+
+    // whole seconds left for Statement.setQueryTimeout, at least 1 since 0 means no timeout, at most the cap
+    int queryTimeoutSeconds(int capSeconds) throws DeadlineExceededException {
+        check();
+        int seconds = (int) Math.max(1, (remainingMillis() + 999) / 1000);
+        return capSeconds > 0 ? Math.min(capSeconds, seconds) : seconds;
+    }
+
+    synchronized void register(Statement statement) throws DeadlineExceededException {
+        check();
+        running.add(statement);
+    }
+
+    synchronized void unregister(Statement statement) {
+        running.remove(statement);
+    }
+
+    // setQueryTimeout only counts whole seconds, this ends the statements at the exact deadline
+    private synchronized void cancelRunning() {
+        for (Statement statement : running) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                // the statement finished in the meantime
+            }
+        }
+    }
+
+    // leaves the command out of stats()
+    public void uncount() {
+        counted = false;
+    }
+
+    // unbinds the deadline and records whether the command made it in time
+    @Override
+    public void close() {
+        cancelTask.cancel(false);
+        current.set(previous);
+        if (!counted) {
+            return;
+        }
+        LongAdder[] counts = outcomes.computeIfAbsent(operation, k -> new LongAdder[]{new LongAdder(),
+                new LongAdder()});
+        counts[0].increment();
+        if (isExpired()) {
+            counts[1].increment();
+        }
+    }
+
+    // forgets every command counted so far, e.g. the synthetic ones of WarmStart
+    public static void clearStats() {
+        outcomes.clear();
+    }
+
+    public static long getMisses(String operation) {
+        LongAdder[] counts = outcomes.get(operation);
+        return counts == null ? 0 : counts[1].sum();
+    }
+
+    public static String stats() {
+        StringBuilder sb = new StringBuilder("Deadline misses:");
+        for (Map.Entry<String, LongAdder[]> entry : new TreeMap<>(outcomes).entrySet()) {
+            long commands = entry.getValue()[0].sum();
+            long misses = entry.getValue()[1].sum();
+            sb.append(String.format("%n  %-26s %6d of %8d (%.2f%%), budget %d ms", entry.getKey(), misses, commands,
+                    100.0 * misses / commands, budgets.getOrDefault(entry.getKey(), defaultBudgetMillis)));
+        }
+        return sb.toString();
+    }
+}
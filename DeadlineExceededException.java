@@ -0,0 +1,13 @@
+package scheduler.db;
+
+import java.sql.SQLTimeoutException;
+
+// thrown when a command used up its Deadline, the database itself may be fine
+public class DeadlineExceededException extends SQLTimeoutException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String reason) {
+        super(reason, "HYT00");
+    }
+}
@@ -0,0 +1,310 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lot-level dose inventory with expiry-first allocation.
+ *
+ * Vaccines.Doses stays the total, the DoseLots rows say which lots that total is made of. Doses added without a
+ * lot belong to none. A reservation takes its dose in its own transaction: from the earliest-expiring lot that is
+ * still valid on the appointment day, with an UPDATE that only applies while the lot has doses left, or from the
+ * doses without a lot if no lot is valid that day. The total goes down with an UPDATE that only applies while it
+ * stays at least the sum of the lots, so a dose without a lot is never taken out of a lot's share.
+ *
+ * Each vaccine's lots are kept in memory ordered by expiry, loaded once and then used without a round trip, but
+ * only to pick the lot to try: the table decides. A lot the table says is used up is dropped from memory and the
+ * next one tried. In long-running modes, every LotSweepMinutes (default 60) lots past their expiry are swept:
+ * their remaining doses are taken out of Vaccines.Doses and the rows deleted.
+ */
+public class DoseLots {
+
+    private static final long sweepMinutes = System.getenv("LotSweepMinutes") == null ? 60 :
+            Long.parseLong(System.getenv("LotSweepMinutes"));
+
+    private static class Lot implements Comparable<Lot> {
+        private final String name;
+        private final Date expiry;
+        private int doses;
+
+        private Lot(String name, Date expiry, int doses) {
+            this.name = name;
+            this.expiry = expiry;
+            this.doses = doses;
+        }
+
+        @Override
+        public int compareTo(Lot other) {
+            int byExpiry = expiry.compareTo(other.expiry);
+            return byExpiry != 0 ? byExpiry : name.compareTo(other.name);
+        }
+    }
+
+    // one vaccine's unexpired lots. Lots with doses left are in the tree, all of them are in byName so a cancelled
+    // appointment can give its dose back to a used-up lot
+    private static class LotQueue {
+        private final TreeSet<Lot> available = new TreeSet<>();
+        private final Map<String, Lot> byName = new HashMap<>();
+
+        private void put(Lot lot) {
+            byName.put(lot.name, lot);
+            if (lot.doses > 0) {
+                available.add(lot);
+            }
+        }
+    }
+
+    private static final Map<String, LotQueue> queues = new ConcurrentHashMap<>();
+
+    // loads hold this, so a vaccine's lots are read once however many reservations ask for them at the same time
+    private static final Object loadLock = new Object();
+
+    // takes one dose for an appointment on the given day from the earliest-expiring lot that still has one, in the
+    // caller's transaction. Returns the lot, or null if no lot is valid that day and the dose has to come from the
+    // doses without a lot. A rollback leaves the in-memory count one short, which only makes the lot a later pick
+    public static String take(Connection con, String vaccineName, Date day) throws SQLException {
+        while (true) {
+            String lot = allocate(vaccineName, day);
+            if (lot == null) {
+                return null;
+            }
+            if (removeDoses(con, vaccineName, Map.of(lot, 1))) {
+                return lot;
+            }
+            // another node took its last doses, or swept it
+            drop(vaccineName, lot);
+        }
+    }
+
+    // the lot the next dose for an appointment on the given day should come from, taken out of the in-memory
+    // count only. Returns null if no lot is valid that day
+    public static String allocate(String vaccineName, Date day) throws SQLException {
+        LotQueue queue = getQueue(vaccineName);
+        synchronized (queue) {
+            Lot lot = queue.available.ceiling(new Lot("", day, 0));
+            if (lot == null) {
+                return null;
+            }
+            // the lot's position in the tree only depends on expiry and name, so it stays put until it runs out
+            lot.doses--;
+            if (lot.doses == 0) {
+                queue.available.remove(lot);
+            }
+            return lot.name;
+        }
+    }
+
+    // takes the given number of doses out of each lot, in the caller's transaction. Every lot must have them left,
+    // otherwise false is returned and the caller rolls back. A lot keeps its expiry, so the one it was picked by
+    // still holds; a swept lot matches no row
+    public static boolean removeDoses(Connection con, String vaccineName, Map<String, Integer> doses)
+            throws SQLException {
+        String updateLot = "UPDATE DoseLots SET Doses = Doses - ? WHERE Vaccine_Name = ? AND Lot = ? AND Doses >= ?";
+        PreparedStatement statement = con.prepareStatement(updateLot);
+        for (Map.Entry<String, Integer> entry : doses.entrySet()) {
+            statement.setInt(1, entry.getValue());
+            statement.setString(2, vaccineName);
+            statement.setString(3, entry.getKey());
+            statement.setInt(4, entry.getValue());
+            statement.addBatch();
+        }
+        for (int count : statement.executeBatch()) {
+            if (count == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // takes the given number of doses out of the vaccine's total, in the caller's transaction after the lots they
+    // came from were decremented. Applies only while the total stays at least what the lots still hold, returns
+    // false otherwise
+    public static boolean removeFromTotal(Connection con, String vaccineName, int doses) throws SQLException {
+        String updateVaccine = "UPDATE Vaccines SET Doses = Doses - ?, Version = Version + 1 WHERE Name = ? AND " +
+                "Doses >= ? + (SELECT COALESCE(SUM(Doses), 0) FROM DoseLots WHERE Vaccine_Name = ?)";
+        PreparedStatement statement = con.prepareStatement(updateVaccine);
+        statement.setInt(1, doses);
+        statement.setString(2, vaccineName);
+        statement.setInt(3, doses);
+        statement.setString(4, vaccineName);
+        return statement.executeUpdate() > 0;
+    }
+
+    // gives the dose of a cancelled appointment back to its lot, in the caller's transaction. Returns false if the
+    // lot expired or was swept in the meantime, then the dose is not usable any more
+    public static boolean release(Connection con, String vaccineName, String lotName, Date today)
+            throws SQLException {
+        String updateLot = "UPDATE DoseLots SET Doses = Doses + 1 WHERE Vaccine_Name = ? AND Lot = ? AND Expiry >= ?";
+        PreparedStatement statement = con.prepareStatement(updateLot);
+        statement.setString(1, vaccineName);
+        statement.setString(2, lotName);
+        statement.setDate(3, today);
+        return statement.executeUpdate() > 0;
+    }
+
+    // the in-memory count of a lot that got a dose back from a committed cancel, unless it has expired since
+    public static void restored(String vaccineName, String lotName, Date today) {
+        LotQueue queue = queues.get(vaccineName);
+        if (queue != null) {
+            synchronized (queue) {
+                Lot lot = queue.byName.get(lotName);
+                if (lot != null && !lot.expiry.before(today)) {
+                    lot.doses++;
+                    queue.available.add(lot);
+                }
+            }
+        }
+    }
+
+    // the in-memory count of a lot the table says has nothing left for the day asked for
+    private static void drop(String vaccineName, String lotName) {
+        LotQueue queue = queues.get(vaccineName);
+        if (queue != null) {
+            synchronized (queue) {
+                Lot lot = queue.byName.get(lotName);
+                if (lot != null) {
+                    lot.doses = 0;
+                    queue.available.remove(lot);
+                }
+            }
+        }
+    }
+
+    // the expiry of a known lot, null if the vaccine has no such unexpired lot
+    public static Date getExpiry(String vaccineName, String lotName) throws SQLException {
+        LotQueue queue = getQueue(vaccineName);
+        synchronized (queue) {
+            Lot lot = queue.byName.get(lotName);
+            return lot == null ? null : lot.expiry;
+        }
+    }
+
+    // adds doses to a lot, creating it if it is new, in the caller's transaction that adds them to the total. The
+    // caller drops the vaccine's in-memory lots once it committed
+    static void add(Connection con, String vaccineName, String lotName, Date expiry, int doses) throws SQLException {
+        // a lot number with another expiry matches no row and fails on the primary key
+        String updateLot = "UPDATE DoseLots WITH (UPDLOCK, HOLDLOCK) SET Doses = Doses + ? " +
+                "WHERE Vaccine_Name = ? AND Lot = ? AND Expiry = ?";
+        String addLot = "INSERT INTO DoseLots (Doses, Vaccine_Name, Lot, Expiry) VALUES (?, ?, ?, ?)";
+        Utilization.upsert(con, updateLot, addLot, doses, vaccineName, lotName, expiry);
+    }
+
+    // drops the in-memory lots of a vaccine that changed, the next use loads them again
+    public static void invalidate(String vaccineName) {
+        queues.remove(vaccineName);
+    }
+
+    public static void invalidateAll() {
+        queues.clear();
+    }
+
+    private static LotQueue getQueue(String vaccineName) throws SQLException {
+        LotQueue queue = queues.get(vaccineName);
+        if (queue != null) {
+            return queue;
+        }
+        synchronized (loadLock) {
+            queue = queues.get(vaccineName);
+            if (queue == null) {
+                queue = load(vaccineName);
+                queues.put(vaccineName, queue);
+            }
+            return queue;
+        }
+    }
+
+    private static LotQueue load(String vaccineName) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getLots = "SELECT Lot, Expiry, Doses FROM DoseLots WHERE Vaccine_Name = ? AND Expiry >= ?";
+        try {
+            PreparedStatement statement = con.prepareStatement(getLots);
+            statement.setString(1, vaccineName);
+            statement.setDate(2, Utilization.today());
+            ResultSet resultSet = statement.executeQuery();
+            LotQueue queue = new LotQueue();
+            while (resultSet.next()) {
+                queue.put(new Lot(resultSet.getString("Lot"), resultSet.getDate("Expiry"),
+                        resultSet.getInt("Doses")));
+            }
+            return queue;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // starts the background sweep, called once at startup of a long-running mode
+    public static void startSweep() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dose-lots");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (SQLException e) {
+                System.out.println("Error occurred when sweeping expired dose lots: " + e);
+            }
+        }, 0, sweepMinutes, TimeUnit.MINUTES);
+    }
+
+    // takes the doses of lots that expired before today out of stock, in one transaction
+    public static void sweep() throws SQLException {
+        Date today = Utilization.today();
+        Map<String, Integer> expired = new HashMap<>();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        // the expired lots are locked when read, their counts cannot change before they are deleted
+        String getExpired = "SELECT Vaccine_Name, Doses FROM DoseLots WITH (UPDLOCK, HOLDLOCK) WHERE Expiry < ?";
+        String deleteExpired = "DELETE FROM DoseLots WHERE Expiry < ?";
+        String removeDoses = "UPDATE Vaccines SET Doses = CASE WHEN Doses > ? THEN Doses - ? ELSE 0 END, " +
+                "Version = Version + 1 WHERE Name = ?";
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement select = con.prepareStatement(getExpired);
+            select.setDate(1, today);
+            ResultSet resultSet = select.executeQuery();
+            while (resultSet.next()) {
+                expired.merge(resultSet.getString("Vaccine_Name"), resultSet.getInt("Doses"), Integer::sum);
+            }
+            resultSet.close();
+            PreparedStatement delete = con.prepareStatement(deleteExpired);
+            delete.setDate(1, today);
+            delete.executeUpdate();
+            PreparedStatement update = con.prepareStatement(removeDoses);
+            for (Map.Entry<String, Integer> entry : expired.entrySet()) {
+                update.setInt(1, entry.getValue());
+                update.setInt(2, entry.getValue());
+                update.setString(3, entry.getKey());
+                update.addBatch();
+            }
+            update.executeBatch();
+            for (Map.Entry<String, Integer> entry : expired.entrySet()) {
+                Utilization.addVaccine(con, today, entry.getKey(), 0, -entry.getValue());
+            }
+            con.commit();
+        } finally {
+            // an uncommitted transaction is rolled back when the connection goes back to the pool
+            cm.closeConnection();
+        }
+        for (String vaccineName : expired.keySet()) {
+            ModelCache.invalidateVaccine(vaccineName);
+            invalidate(vaccineName);
+        }
+    }
+}
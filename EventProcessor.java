@@ -0,0 +1,74 @@
+package scheduler.events;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// drives one subscriber: waits for published events and hands them over in batches. An idle processor spins
+// briefly, then parks until a publisher wakes it, so an idle ring costs no CPU.
+class EventProcessor implements Runnable {
+
+    private static final int SPIN_TRIES = 100;
+
+    private final EventRing ring;
+    private final EventSubscriber subscriber;
+    // last sequence this subscriber is done with, publishers may reuse every slot up to it
+    private final AtomicLong sequence;
+    private volatile boolean running = true;
+    // the processor's thread while it is parked waiting for events, null otherwise
+    private volatile Thread sleeping;
+
+    EventProcessor(EventRing ring, EventSubscriber subscriber, long start) {
+        this.ring = ring;
+        this.subscriber = subscriber;
+        this.sequence = new AtomicLong(start);
+    }
+
+    long getSequence() {
+        return sequence.get();
+    }
+
+    void halt() {
+        running = false;
+        wake();
+    }
+
+    // called by publishers after every event, only touches the thread when it is parked
+    void wake() {
+        Thread thread = sleeping;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        long next = sequence.get() + 1;
+        int idle = 0;
+        while (running) {
+            long available = ring.getHighestPublished(next, ring.getCursor());
+            if (available < next) {
+                if (++idle < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                // announce the sleep before the last look, so an event published in between wakes us
+                sleeping = Thread.currentThread();
+                if (running && ring.getHighestPublished(next, ring.getCursor()) < next) {
+                    LockSupport.park(this);
+                }
+                sleeping = null;
+                continue;
+            }
+            idle = 0;
+            for (long s = next; s <= available; s++) {
+                try {
+                    subscriber.onEvent(ring.get(s), s, s == available);
+                } catch (Exception e) {
+                    System.out.println("Error occurred in event subscriber " + subscriber + ": " + e);
+                }
+            }
+            sequence.set(available);
+            next = available + 1;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package scheduler.events;
+
+import scheduler.model.Appointment;
+
+import java.sql.Date;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class EventRing {
+
+    private final ChangeEvent[] entries;
+    private final int mask;
+    // highest sequence handed to a publisher
+    private final AtomicLong cursor = new AtomicLong(-1);
+    // sequence last published into each slot, so subscribers never read a slot that is still being written
+    private final AtomicLongArray published;
+    private final AtomicLong dropped = new AtomicLong();
+    // replaced, never modified, so publishers can scan it without taking a lock or allocating an iterator
+    private volatile EventProcessor[] processors = new EventProcessor[0];
+
+    public EventRing(int size) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two!");
+        }
+        this.entries = new ChangeEvent[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = new ChangeEvent();
+        }
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    // starts a daemon thread that feeds the subscriber every event published from now on
+    public synchronized void subscribe(String name, EventSubscriber subscriber) {
+        EventProcessor processor = new EventProcessor(this, subscriber, cursor.get());
+        EventProcessor[] updated = Arrays.copyOf(processors, processors.length + 1);
+        updated[updated.length - 1] = processor;
+        processors = updated;
+        Thread t = new Thread(processor, "events-" + name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // slot is the start minute or Appointment.WHOLE_DAY, as stored in Appointments.Slot
+    public void publishAppointmentCreated(int appointmentId, String vaccineName, Date d, int slot,
+                                          String patientName, String caregiverName) {
+        publish(ChangeEvent.Type.APPOINTMENT_CREATED, appointmentId, vaccineName, caregiverName, patientName,
+                d.getTime(), slot, 0);
+    }
+
+    public void publishAvailabilityRemoved(String caregiverName, Date d, int slot) {
+        publish(ChangeEvent.Type.AVAILABILITY_REMOVED, 0, null, caregiverName, null, d.getTime(), slot, 0);
+    }
+
+    public void publishDosesAdded(String vaccineName, int doses) {
+        publish(ChangeEvent.Type.DOSES_ADDED, 0, vaccineName, null, null, -1, Appointment.WHOLE_DAY, doses);
+    }
+
+    public void publishAppointmentCancelled(int appointmentId, String vaccineName, Date d, int slot,
+                                            String patientName, String caregiverName) {
+        publish(ChangeEvent.Type.APPOINTMENT_CANCELLED, appointmentId, vaccineName, caregiverName, patientName,
+                d.getTime(), slot, 0);
+    }
+
+    // every publisher only ever writes the slot it claimed, so publishing needs no lock and allocates nothing.
+    // If the slowest subscriber is a whole ring behind, the event is dropped rather than stalling a reservation.
+    // Events come from every command thread and the batch committer at once, so the sequence is claimed with a CAS
+    // on the cursor: funnelling them through a single writer would put a queue hand-off, the cost the ring avoids,
+    // back on every reservation.
+    private void publish(ChangeEvent.Type type, int appointmentId, String vaccineName, String caregiverName,
+                         String patientName, long date, int slot, int doses) {
+        EventProcessor[] current = processors;
+        if (current.length == 0) {
+            return;
+        }
+        long sequence = claim();
+        if (sequence < 0) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int index = (int) sequence & mask;
+        entries[index].set(type, appointmentId, vaccineName, caregiverName, patientName, date, slot, doses);
+        // a full write, so a processor that is about to sleep either sees the event or is seen sleeping here
+        published.set(index, sequence);
+        for (int i = 0; i < current.length; i++) {
+            current[i].wake();
+        }
+    }
+
+    private long claim() {
+        while (true) {
+            long current = cursor.get();
+            long next = current + 1;
+            if (next - entries.length > getMinimumSequence(current)) {
+                return -1;
+            }
+            if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    private long getMinimumSequence(long defaultValue) {
+        EventProcessor[] current = processors;
+        long minimum = defaultValue;
+        for (int i = 0; i < current.length; i++) {
+            minimum = Math.min(minimum, current[i].getSequence());
+        }
+        return minimum;
+    }
+
+    long getCursor() {
+        return cursor.get();
+    }
+
+    // highest sequence in [from, to] such that every event up to it has been published
+    long getHighestPublished(long from, long to) {
+        for (long s = from; s <= to; s++) {
+            if (published.get((int) s & mask) != s) {
+                return s - 1;
+            }
+        }
+        return to;
+    }
+
+    ChangeEvent get(long sequence) {
+        return entries[(int) sequence & mask];
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,8 @@
+package scheduler.events;
+
+public interface EventSubscriber {
+
+    // called on the subscriber's own thread for every event in order, endOfBatch marks the last event that was
+    // available when the batch started, which is the place to flush
+    void onEvent(ChangeEvent event, long sequence, boolean endOfBatch) throws Exception;
+}
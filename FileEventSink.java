@@ -0,0 +1,31 @@
+package scheduler.events;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+
+// appends every event as a JSON line, flushing once per batch
+public class FileEventSink implements EventSubscriber {
+
+    private final String path;
+    private final BufferedWriter writer;
+
+    public FileEventSink(String path) throws IOException {
+        this.path = path;
+        this.writer = new BufferedWriter(new FileWriter(path, true));
+    }
+
+    @Override
+    public void onEvent(ChangeEvent event, long sequence, boolean endOfBatch) throws IOException {
+        writer.write(event.toJson(sequence));
+        writer.newLine();
+        if (endOfBatch) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileEventSink{" + path + "}";
+    }
+}
@@ -0,0 +1,107 @@
+package scheduler.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// wraps a pooled connection so every statement it creates gets the query timeout, or what is left of the command's
+// Deadline, and reports link failures to the circuit breaker. A connection that failed that way is marked broken and
+// closed instead of going back to the pool
+class GuardedConnection implements InvocationHandler {
+
+    private final Connection con;
+    private final CircuitBreaker breaker;
+    private final int queryTimeoutSeconds;
+    // writes on the primary are reported to ReplicaRouter, for read-your-writes
+    private final boolean tracksWrites;
+    private volatile boolean broken = false;
+
+    private GuardedConnection(Connection con, CircuitBreaker breaker, int queryTimeoutSeconds, boolean tracksWrites) {
+        this.con = con;
+        this.breaker = breaker;
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
+        this.tracksWrites = tracksWrites;
+    }
+
+    static GuardedConnection wrap(Connection con, CircuitBreaker breaker, int queryTimeoutSeconds,
+                                  boolean tracksWrites) {
+        return new GuardedConnection(con, breaker, queryTimeoutSeconds, tracksWrites);
+    }
+
+    Connection getProxy() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, this);
+    }
+
+    Connection getConnection() {
+        return con;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Deadline deadline = Deadline.current();
+        Object result = call(con, method, args, deadline);
+        if (tracksWrites && method.getName().equals("commit")) {
+            ReplicaRouter.wrote();
+        }
+        if (result instanceof Statement) {
+            Statement statement = (Statement) result;
+            // the command's remaining budget when there is one, rounded up to whole seconds
+            int timeout = deadline == null ? queryTimeoutSeconds : deadline.queryTimeoutSeconds(queryTimeoutSeconds);
+            if (timeout > 0) {
+                statement.setQueryTimeout(timeout);
+            }
+            // the proxy implements the interface the method promised, PreparedStatement for prepareStatement
+            return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{method.getReturnType()},
+                    (statementProxy, statementMethod, statementArgs) -> {
+                        if (!statementMethod.getName().startsWith("execute")) {
+                            return call(statement, statementMethod, statementArgs, deadline);
+                        }
+                        if (deadline != null) {
+                            deadline.register(statement);
+                        }
+                        try {
+                            Object value = call(statement, statementMethod, statementArgs, deadline);
+                            breaker.onSuccess();
+                            // inside a transaction the commit is reported again once it is done
+                            if (tracksWrites && !statementMethod.getName().equals("executeQuery")) {
+                                ReplicaRouter.wrote();
+                            }
+                            return value;
+                        } finally {
+                            if (deadline != null) {
+                                deadline.unregister(statement);
+                            }
+                        }
+                    });
+        }
+        return result;
+    }
+
+    private Object call(Object target, Method method, Object[] args, Deadline deadline) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (!(cause instanceof SQLException)) {
+                throw cause;
+            }
+            // a timeout or cancel of a command out of budget says nothing about the link
+            if (deadline != null && deadline.isExpired()) {
+                throw deadline.exceeded((SQLException) cause);
+            }
+            if (breaker.onFailure((SQLException) cause)) {
+                broken = true;
+            }
+            throw cause;
+        }
+    }
+}
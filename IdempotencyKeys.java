@@ -0,0 +1,233 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a write command keyed by a client's idempotency key answered, so that a replay of the request gets the
+ * original answer instead of running the command again.
+ *
+ * The key is bound to the thread running the command. The command's write transaction inserts the key row together
+ * with the answer it is about to give, right before it commits, so the key exists exactly when the write does: a
+ * command that failed or wrote nothing leaves no key and a replay runs it again. A concurrent run under the same key
+ * fails on the primary key, rolls back and answers what the first run stored. Keys are kept for
+ * IdempotencyRetentionHours (default 24), a replay after that runs the command again.
+ */
+public class IdempotencyKeys {
+
+    private static final long retentionHours = System.getenv("IdempotencyRetentionHours") == null ? 24 :
+            Long.parseLong(System.getenv("IdempotencyRetentionHours"));
+
+    private static final ThreadLocal<Key> current = new ThreadLocal<>();
+
+    // a key that was stored before
+    public static class Stored {
+        private final String operation;
+        private final String output;
+
+        private Stored(String operation, String output) {
+            this.operation = operation;
+            this.output = output;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+    }
+
+    // the key a command runs under
+    public static class Key {
+        private final String username;
+        private final String key;
+        private final String operation;
+        // what the command answers once its write commits, stored with the key
+        private volatile String output = null;
+        // a concurrent run stored the key first, this one was rolled back
+        private volatile boolean taken = false;
+
+        public Key(String username, String key, String operation) {
+            this.username = username;
+            this.key = key;
+            this.operation = operation;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        // the line the command prints if its write commits
+        public void answer(String line) {
+            this.output = line + "\n";
+        }
+
+        public boolean isTaken() {
+            return taken;
+        }
+
+        public void markTaken() {
+            this.taken = true;
+        }
+    }
+
+    // binds the key to the current thread, null unbinds. Returns the key bound before, to restore afterwards
+    public static Key bind(Key key) {
+        Key outer = current.get();
+        if (key == null) {
+            current.remove();
+        } else {
+            current.set(key);
+        }
+        return outer;
+    }
+
+    // the key the current thread's command runs under, null if it has none
+    public static Key current() {
+        return current.get();
+    }
+
+    // sets the answer of the bound command, see Key.answer. Does nothing without a bound key
+    public static void answer(String line) {
+        Key key = current.get();
+        if (key != null) {
+            key.answer(line);
+        }
+    }
+
+    // what is stored under the key, null if nothing is
+    public static Stored get(String username, String key) throws SQLException {
+        return Retry.run(() -> getOnce(username, key));
+    }
+
+    private static Stored getOnce(String username, String key) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getKey = "SELECT Operation, Output FROM IdempotencyKeys WHERE Username = ? AND IdempotencyKey = ?";
+        try {
+            PreparedStatement statement = con.prepareStatement(getKey);
+            statement.setString(1, username);
+            statement.setString(2, key);
+            ResultSet resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                return null;
+            }
+            return new Stored(resultSet.getString("Operation"), resultSet.getString("Output"));
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // the given keys that are stored already, in one round trip
+    public static Set<Key> getStored(List<Key> keys) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getKeys = "SELECT Username, IdempotencyKey FROM IdempotencyKeys WHERE " +
+                String.join(" OR ", Collections.nCopies(keys.size(), "(Username = ? AND IdempotencyKey = ?)"));
+        try {
+            PreparedStatement statement = con.prepareStatement(getKeys);
+            int i = 1;
+            for (Key key : keys) {
+                statement.setString(i++, key.username);
+                statement.setString(i++, key.key);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            Set<List<String>> found = new HashSet<>();
+            while (resultSet.next()) {
+                found.add(List.of(resultSet.getString("Username"), resultSet.getString("IdempotencyKey")));
+            }
+            Set<Key> stored = new HashSet<>();
+            for (Key key : keys) {
+                if (found.contains(List.of(key.username, key.key))) {
+                    stored.add(key);
+                }
+            }
+            return stored;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // writes the bound key and its answer in the caller's transaction, right before it commits. Does nothing
+    // without a bound key with an answer. A key that is stored already marks the bound one taken and throws, the
+    // caller's transaction is then rolled back
+    public static void store(Connection con) throws SQLException {
+        Key key = current.get();
+        if (key == null || key.output == null) {
+            return;
+        }
+        try {
+            store(con, List.of(key));
+        } catch (SQLException e) {
+            if (ConnectionManager.isDuplicateKey(e)) {
+                key.markTaken();
+            }
+            throw e;
+        }
+    }
+
+    // writes the given keys and their answers in the caller's transaction, one batch for all of them
+    public static void store(Connection con, List<Key> keys) throws SQLException {
+        String addKey = "INSERT INTO IdempotencyKeys (Username, IdempotencyKey, Operation, Output, CreatedAt) " +
+                "VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP)";
+        PreparedStatement statement = con.prepareStatement(addKey);
+        for (Key key : keys) {
+            statement.setString(1, key.username);
+            statement.setString(2, key.key);
+            statement.setString(3, key.operation);
+            statement.setString(4, key.output);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
+    // drops keys past their retention once an hour
+    public static void start() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "idempotency-purge");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                purge();
+            } catch (SQLException e) {
+                System.out.println("Error occurred when purging idempotency keys: " + e);
+            }
+        }, 1, 60, TimeUnit.MINUTES);
+    }
+
+    private static void purge() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String purgeKeys = "DELETE FROM IdempotencyKeys WHERE CreatedAt < DATEADD(hour, -?, CURRENT_TIMESTAMP)";
+        try {
+            PreparedStatement statement = con.prepareStatement(purgeKeys);
+            statement.setLong(1, retentionHours);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
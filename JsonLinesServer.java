@@ -0,0 +1,268 @@
+package scheduler.protocol;
+
+import scheduler.Scheduler;
+import scheduler.Session;
+import scheduler.db.ConnectionManager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Machine mode of the Scheduler: JSON-lines requests in, JSON-lines responses out, on stdin/stdout or on a TCP port.
+ *
+ * A request is {"id": ..., "session": "s1", "command": "reserve 2022-06-01 Pfizer"}, the command may also be given
+ * as "args": ["reserve", "2022-06-01", "Pfizer"]. id is any string or number and comes back unchanged, session
+ * defaults to "default". The response is {"id": ..., "session": ..., "ok": true, "output": [...], "micros": ...}
+ * with the lines the command printed, or "ok": false and an "error" if the request was malformed or the command
+ * threw. reserve, add_doses and upload_availability may carry an "idempotencyKey": a client that resends a request
+ * with the same key, say after a timeout, gets the original output back and the command does not run twice. A
+ * command that failed before its write committed stored nothing, its resend runs it again.
+ *
+ * Clients do not wait for a response before sending the next request. Each session (login state) runs its
+ * requests one at a time in the order they arrived, different sessions run concurrently on a shared pool of
+ * MachineThreads threads (default twice the connection pool size), so throughput is bound by the database.
+ * Responses are written as commands finish and may come back out of order across sessions. At most
+ * MachineMaxInFlight requests per connection are queued (default 256), after that reading waits. Sessions belong to
+ * their connection, the same name on two connections is two sessions.
+ */
+public class JsonLinesServer {
+
+    private static final int threads = System.getenv("MachineThreads") == null ?
+            2 * ConnectionManager.getPoolSize() : Integer.parseInt(System.getenv("MachineThreads"));
+    private static final int maxInFlight = System.getenv("MachineMaxInFlight") == null ? 256 :
+            Integer.parseInt(System.getenv("MachineMaxInFlight"));
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+        Thread t = new Thread(r, "machine-command");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // serves one client on the given streams (stdin/stdout) until its input ends. The caller moves System.out
+    // elsewhere first, stray prints of the command handlers would corrupt the responses
+    public static void serve(InputStream in, OutputStream out) throws IOException, InterruptedException {
+        new Connection(in, out).serve();
+    }
+
+    // accepts clients on the port, one thread reads each connection
+    public static void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.out.println("Listening for JSON-lines clients on port " + server.getLocalPort());
+            while (true) {
+                Socket socket = server.accept();
+                Thread reader = new Thread(() -> {
+                    try (Socket s = socket) {
+                        new Connection(s.getInputStream(), s.getOutputStream()).serve();
+                    } catch (IOException e) {
+                        // the client went away, its queued commands still finish
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "machine-connection");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+    }
+
+    private static class Connection {
+        private final BufferedReader in;
+        private final Writer out;
+        private final Map<String, SessionQueue> sessions = new HashMap<>();
+        private final Semaphore inFlight = new Semaphore(maxInFlight);
+
+        Connection(InputStream in, OutputStream out) {
+            this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        }
+
+        void serve() throws IOException, InterruptedException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                Request request;
+                try {
+                    request = Request.parse(line);
+                } catch (IllegalArgumentException e) {
+                    respond(null, null, false, null, e.getMessage(), 0);
+                    continue;
+                }
+                inFlight.acquire();
+                sessions.computeIfAbsent(request.session, SessionQueue::new).submit(request);
+            }
+            // let the queued commands answer before the connection closes
+            inFlight.acquire(maxInFlight);
+        }
+
+        void respond(Object id, String session, boolean ok, List<String> output, String error, long micros) {
+            StringBuilder sb = new StringBuilder(128);
+            sb.append("{\"id\":");
+            appendValue(sb, id);
+            sb.append(",\"session\":");
+            appendValue(sb, session);
+            sb.append(",\"ok\":").append(ok);
+            if (output != null) {
+                sb.append(",\"output\":[");
+                for (int i = 0; i < output.size(); i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    JsonLine.appendString(sb, output.get(i));
+                }
+                sb.append(']');
+            }
+            if (error != null) {
+                sb.append(",\"error\":");
+                JsonLine.appendString(sb, error);
+            }
+            sb.append(",\"micros\":").append(micros).append('}');
+            synchronized (out) {
+                try {
+                    out.write(sb.toString());
+                    out.write('\n');
+                    out.flush();
+                } catch (IOException e) {
+                    // nobody is reading any more, the command itself already ran
+                }
+            }
+        }
+
+        private static void appendValue(StringBuilder sb, Object value) {
+            if (value == null) {
+                sb.append("null");
+            } else if (value instanceof String) {
+                JsonLine.appendString(sb, (String) value);
+            } else {
+                sb.append(((BigDecimal) value).toString());
+            }
+        }
+
+        // one login session of the connection, its requests run one after the other on the shared pool
+        private class SessionQueue {
+            private final String name;
+            private final Session session;
+            private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            private final Queue<Request> pending = new ArrayDeque<>();
+            private boolean running = false;
+
+            SessionQueue(String name) {
+                this.name = name;
+                this.session = new Session(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+            }
+
+            synchronized void submit(Request request) {
+                pending.add(request);
+                if (!running) {
+                    running = true;
+                    executor.execute(this::drain);
+                }
+            }
+
+            private void drain() {
+                while (true) {
+                    Request request;
+                    synchronized (this) {
+                        request = pending.poll();
+                        if (request == null) {
+                            running = false;
+                            return;
+                        }
+                    }
+                    run(request);
+                }
+            }
+
+            private void run(Request request) {
+                long start = System.nanoTime();
+                boolean ok = true;
+                String error = null;
+                try {
+                    Scheduler.execute(session, request.tokens, request.idempotencyKey);
+                } catch (Exception e) {
+                    ok = false;
+                    error = e.toString();
+                } finally {
+                    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                    String output = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+                    buffer.reset();
+                    List<String> lines = output.isEmpty() ? List.of() : List.of(output.split("\\r?\\n"));
+                    respond(request.id, name, ok, lines, error, micros);
+                    inFlight.release();
+                }
+            }
+        }
+    }
+
+    private static class Request {
+        private final Object id;
+        private final String session;
+        private final String[] tokens;
+        private final String idempotencyKey;
+
+        private Request(Object id, String session, String[] tokens, String idempotencyKey) {
+            this.id = id;
+            this.session = session;
+            this.tokens = tokens;
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        static Request parse(String line) {
+            Map<String, Object> object = JsonLine.parseObject(line);
+            Object id = object.get("id");
+            if (id != null && !(id instanceof String) && !(id instanceof BigDecimal)) {
+                throw new IllegalArgumentException("id must be a string or a number");
+            }
+            Object session = object.getOrDefault("session", "default");
+            if (!(session instanceof String)) {
+                throw new IllegalArgumentException("session must be a string");
+            }
+            String[] tokens;
+            if (object.get("command") instanceof String) {
+                tokens = ((String) object.get("command")).trim().split(" ");
+            } else if (object.get("args") instanceof List) {
+                List<?> args = (List<?>) object.get("args");
+                tokens = new String[args.size()];
+                for (int i = 0; i < tokens.length; i++) {
+                    if (!(args.get(i) instanceof String)) {
+                        throw new IllegalArgumentException("args must be strings");
+                    }
+                    tokens[i] = (String) args.get(i);
+                }
+            } else {
+                throw new IllegalArgumentException("Request needs a command or args");
+            }
+            if (tokens.length == 0 || tokens[0].isEmpty()) {
+                throw new IllegalArgumentException("Empty command");
+            }
+            Object key = object.get("idempotencyKey");
+            if (key != null && (!(key instanceof String) || ((String) key).isEmpty() ||
+                    ((String) key).length() > 64)) {
+                throw new IllegalArgumentException("idempotencyKey must be a string of 1 to 64 characters");
+            }
+            return new Request(id, (String) session, tokens, (String) key);
+        }
+    }
+}
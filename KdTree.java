@@ -0,0 +1,148 @@
+package scheduler.geo;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Static 3-d tree over points on the unit sphere.
+ *
+ * Latitude/longitude pairs are stored as unit vectors, so the straight-line (chord) distance between two points grows
+ * with their great-circle distance everywhere, including across the date line and near the poles, and a radius
+ * search on the sphere is an ordinary ball search in three dimensions. The tree is built once from all points and
+ * laid out in a flat array: the median of every range is its root, the halves on either side are its subtrees.
+ * Building is O(n log n), a radius search visits O(sqrt(n) + k) nodes for k results.
+ */
+public class KdTree {
+
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+    // ids[i] is the caller's index of the point stored at position i
+    private final int[] ids;
+
+    public KdTree(double[] latitudes, double[] longitudes) {
+        int n = latitudes.length;
+        this.xs = new double[n];
+        this.ys = new double[n];
+        this.zs = new double[n];
+        this.ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            double lat = Math.toRadians(latitudes[i]);
+            double lon = Math.toRadians(longitudes[i]);
+            xs[i] = Math.cos(lat) * Math.cos(lon);
+            ys[i] = Math.cos(lat) * Math.sin(lon);
+            zs[i] = Math.sin(lat);
+            ids[i] = i;
+        }
+        build(0, n, 0);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    // great-circle distance in kilometres
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1)) *
+                Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    // hands the index of every point within radiusKm of the given coordinates to the consumer, in no particular order
+    public void within(double latitude, double longitude, double radiusKm, IntConsumer consumer) {
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        double[] q = {Math.cos(lat) * Math.cos(lon), Math.cos(lat) * Math.sin(lon), Math.sin(lat)};
+        // chord length of the arc, anything past half the circumference covers the whole sphere
+        double chord = radiusKm >= Math.PI * EARTH_RADIUS_KM ? 2 : 2 * Math.sin(radiusKm / (2 * EARTH_RADIUS_KM));
+        search(0, ids.length, 0, q, chord * chord, consumer);
+    }
+
+    private void search(int lo, int hi, int axis, double[] q, double r2, IntConsumer consumer) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            double dx = xs[mid] - q[0];
+            double dy = ys[mid] - q[1];
+            double dz = zs[mid] - q[2];
+            if (dx * dx + dy * dy + dz * dz <= r2) {
+                consumer.accept(ids[mid]);
+            }
+            double split = coordinate(mid, axis) - q[axis];
+            int next = (axis + 1) % 3;
+            // descend into the near side with the loop, recurse only when the ball crosses the splitting plane
+            if (split > 0) {
+                if (split * split <= r2) {
+                    search(mid + 1, hi, next, q, r2, consumer);
+                }
+                hi = mid;
+            } else {
+                if (split * split <= r2) {
+                    search(lo, mid, next, q, r2, consumer);
+                }
+                lo = mid + 1;
+            }
+            axis = next;
+        }
+    }
+
+    private void build(int lo, int hi, int axis) {
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            select(lo, hi - 1, mid, axis);
+            int next = (axis + 1) % 3;
+            build(lo, mid, next);
+            lo = mid + 1;
+            axis = next;
+        }
+    }
+
+    // quickselect: afterwards position k holds the k-th smallest coordinate on the axis in [lo, hi], with nothing
+    // larger before it and nothing smaller after it
+    private void select(int lo, int hi, int k, int axis) {
+        while (lo < hi) {
+            double pivot = coordinate((lo + hi) >>> 1, axis);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (coordinate(i, axis) < pivot) {
+                    i++;
+                }
+                while (coordinate(j, axis) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double coordinate(int i, int axis) {
+        return axis == 0 ? xs[i] : axis == 1 ? ys[i] : zs[i];
+    }
+
+    private void swap(int i, int j) {
+        double x = xs[i];
+        xs[i] = xs[j];
+        xs[j] = x;
+        double y = ys[i];
+        ys[i] = ys[j];
+        ys[j] = y;
+        double z = zs[i];
+        zs[i] = zs[j];
+        zs[j] = z;
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+    }
+}
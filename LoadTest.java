@@ -0,0 +1,526 @@
+package scheduler.bench;
+
+import scheduler.Scheduler;
+import scheduler.Session;
+import scheduler.admission.WaitingRoom;
+import scheduler.db.ConnectionManager;
+import scheduler.db.Deadline;
+import scheduler.db.ReplicaRouter;
+import scheduler.db.Retry;
+import scheduler.feed.ChangeFeed;
+import scheduler.model.Appointment;
+import scheduler.model.Caregiver;
+import scheduler.model.ModelCache;
+import scheduler.model.Patient;
+import scheduler.model.SlotMap;
+import scheduler.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator for the Scheduler command handlers.
+ *
+ * Usage: LoadTest [key=value ...], e.g.
+ *   patients=2000 caregivers=100 vaccines=3 doses=5000 days=30 window=09:00-17:00 slot_minutes=15
+ *   threads=32 rate=300 duration=60 mix=reserve:60,search:25,add_doses:5,show:10 cleanup=false
+ *
+ * Without slot_minutes every availability is a whole day, with it a window split into slots of that length.
+ * Synthetic users, availabilities and vaccines are bulk loaded under a per-run name prefix, then commands are
+ * issued at a fixed arrival rate (open loop, latency is measured from the intended start so a slow database
+ * can't hide its own backlog). Each command's reply is captured and classified: ok, rejected (no caregiver, no
+ * doses or turned away by the waiting room, the answers a full schedule gives) or failed (an error reply, a
+ * timeout, no reply or an exception). Latency percentiles cover the commands that got an answer, failures are
+ * counted apart with a sample of their replies. The run ends with invariant checks over the rows it created.
+ */
+public class LoadTest {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final String PASSWORD = "LoadTest#1";
+    // replies that mean the command did not do its job, checked before the rejections
+    private static final String[] FAILURES = {"Error occurred", "Please try again!", "please try again in a moment",
+            "ran out of time", "Please login", "Please enter", "already used for"};
+    // replies that mean the schedule or the waiting room had no room, a valid answer under load
+    private static final String[] REJECTIONS = {"There are no caregivers available", "There are 0 doses",
+            "There are no doses", "Too many patients are waiting", "please try again later",
+            "Your turn did not come"};
+    private static final int FAILURE_SAMPLES = 10;
+
+    private final Map<String, String> config;
+    private final String prefix = "lt" + Long.toString(System.currentTimeMillis(), 36) + "_";
+    private final LocalDate firstDay = LocalDate.now().plusDays(1);
+
+    private final List<Session> patientSessions = new ArrayList<>();
+    private final List<Session> caregiverSessions = new ArrayList<>();
+    private final List<String> vaccines = new ArrayList<>();
+    private final Map<String, LatencyRecorder> latencies = new LinkedHashMap<>();
+    private final Map<String, String> failureSamples = new ConcurrentHashMap<>();
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> config = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                System.out.println("Ignoring argument " + arg + ", expected key=value");
+                continue;
+            }
+            config.put(kv[0], kv[1]);
+        }
+        LoadTest test = new LoadTest(config);
+        test.load();
+        test.run();
+        boolean ok = test.checkInvariants();
+        if (Boolean.parseBoolean(test.get("cleanup", "false"))) {
+            test.cleanup();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    public LoadTest(Map<String, String> config) {
+        this.config = config;
+        for (String entry : get("mix", "reserve:60,search:25,add_doses:5,show:10").split(",")) {
+            String[] kv = entry.split(":");
+            mix.put(kv[0], Integer.parseInt(kv[1]));
+            latencies.put(kv[0], new LatencyRecorder());
+        }
+    }
+
+    private String get(String key, String defaultValue) {
+        return config.getOrDefault(key, defaultValue);
+    }
+
+    private int getInt(String key, int defaultValue) {
+        return Integer.parseInt(get(key, String.valueOf(defaultValue)));
+    }
+
+    // synthesize users, availabilities and vaccines and load them with batched inserts
+    public void load() throws SQLException {
+        int patients = getInt("patients", 1000);
+        int caregivers = getInt("caregivers", 50);
+        int vaccineCount = getInt("vaccines", 3);
+        int doses = getInt("doses", 1000);
+        int days = getInt("days", 30);
+        SlotMap slots = config.containsKey("slot_minutes") ? slotMap() :
+                new SlotMap(0, SlotMap.MINUTES_PER_DAY, SlotMap.MINUTES_PER_DAY);
+
+        // every synthetic user shares one password, so hash it once
+        byte[] salt = Util.generateSalt();
+        byte[] hash = Util.generateHash(PASSWORD, salt);
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+        long start = System.nanoTime();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement addPatient = con.prepareStatement("INSERT INTO Patients VALUES (?, ?, ?)");
+            for (int i = 0; i < patients; i++) {
+                String username = prefix + "p" + i;
+                addPatient.setString(1, username);
+                addPatient.setBytes(2, salt);
+                addPatient.setBytes(3, hash);
+                addBatch(addPatient, i);
+                Session session = new Session(discard);
+                session.setCurrentPatient(new Patient.PatientBuilder(username, salt, hash).build());
+                patientSessions.add(session);
+            }
+            addPatient.executeBatch();
+
+            PreparedStatement addCaregiver =
+                    con.prepareStatement("INSERT INTO Caregivers (Username, Salt, Hash) VALUES (?, ?, ?)");
+            PreparedStatement addAvailability = con.prepareStatement("INSERT INTO Availabilities (Time, Username, " +
+                    "StartMinute, EndMinute, SlotMinutes, FreeSlots) VALUES (?, ?, ?, ?, ?, ?)");
+            int availabilities = 0;
+            for (int i = 0; i < caregivers; i++) {
+                String username = prefix + "c" + i;
+                addCaregiver.setString(1, username);
+                addCaregiver.setBytes(2, salt);
+                addCaregiver.setBytes(3, hash);
+                addBatch(addCaregiver, i);
+                for (int day = 0; day < days; day++) {
+                    addAvailability.setDate(1, Date.valueOf(firstDay.plusDays(day)));
+                    addAvailability.setString(2, username);
+                    addAvailability.setInt(3, slots.getStartMinute());
+                    addAvailability.setInt(4, slots.getEndMinute());
+                    addAvailability.setInt(5, slots.getSlotMinutes());
+                    addAvailability.setInt(6, slots.getFreeSlots());
+                    addBatch(addAvailability, availabilities++);
+                }
+                Session session = new Session(discard);
+                session.setCurrentCaregiver(new Caregiver.CaregiverBuilder(username, salt, hash).build());
+                caregiverSessions.add(session);
+            }
+            addCaregiver.executeBatch();
+            addAvailability.executeBatch();
+
+            PreparedStatement addVaccine =
+                    con.prepareStatement("INSERT INTO Vaccines (Name, Doses) VALUES (?, ?)");
+            for (int i = 0; i < vaccineCount; i++) {
+                String name = prefix + "v" + i;
+                addVaccine.setString(1, name);
+                addVaccine.setInt(2, doses);
+                addVaccine.addBatch();
+                vaccines.add(name);
+            }
+            addVaccine.executeBatch();
+            con.commit();
+        } finally {
+            cm.closeConnection();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("Loaded " + patients + " patients, " + caregivers + " caregivers, " +
+                caregivers * days + " availabilities and " + vaccineCount + " vaccines in " + elapsed + " ms" +
+                " (prefix " + prefix + ")");
+    }
+
+    private SlotMap slotMap() {
+        String[] window = get("window", "09:00-17:00").split("-");
+        return new SlotMap(SlotMap.parseMinute(window[0]), SlotMap.parseMinute(window[1]),
+                getInt("slot_minutes", 15));
+    }
+
+    private static void addBatch(PreparedStatement statement, int row) throws SQLException {
+        statement.addBatch();
+        if ((row + 1) % BATCH_SIZE == 0) {
+            statement.executeBatch();
+        }
+    }
+
+    // issue commands at the configured arrival rate until the duration is up
+    public void run() throws InterruptedException {
+        int threads = getInt("threads", 32);
+        int rate = getInt("rate", 200);
+        int duration = getInt("duration", 60);
+        int days = getInt("days", 30);
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long issued = 0;
+        for (long intended = start; intended < end; intended += intervalNanos) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            String operation = pickOperation();
+            long intendedStart = intended;
+            workers.execute(() -> {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                String output;
+                Outcome outcome;
+                try {
+                    execute(operation, days, new PrintStream(buffer, true, StandardCharsets.UTF_8));
+                    output = buffer.toString(StandardCharsets.UTF_8);
+                    outcome = classify(operation, output);
+                } catch (SQLException | RuntimeException e) {
+                    output = e.toString();
+                    outcome = Outcome.FAILED;
+                }
+                latencies.get(operation).record(outcome, System.nanoTime() - intendedStart);
+                if (outcome == Outcome.FAILED && failureSamples.size() < FAILURE_SAMPLES) {
+                    failureSamples.putIfAbsent(output.isEmpty() ? "(no reply)" : output.strip(), operation);
+                }
+            });
+            issued++;
+        }
+        workers.shutdown();
+        workers.awaitTermination(5, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println();
+        long failed = 0;
+        for (LatencyRecorder recorder : latencies.values()) {
+            failed += recorder.count(Outcome.FAILED);
+        }
+        System.out.printf("Issued %d commands in %.1f s, %.1f commands/s, %d failed%n",
+                issued, seconds, issued / seconds, failed);
+        System.out.printf("%-10s %8s %8s %8s %10s %10s %10s %10s %10s%n", "command", "ok", "rejected", "failed",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Map.Entry<String, LatencyRecorder> entry : latencies.entrySet()) {
+            LatencyRecorder recorder = entry.getValue();
+            System.out.printf("%-10s %8d %8d %8d %10.2f %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(),
+                    recorder.count(Outcome.OK), recorder.count(Outcome.REJECTED), recorder.count(Outcome.FAILED),
+                    recorder.percentile(50), recorder.percentile(90), recorder.percentile(99),
+                    recorder.percentile(99.9), recorder.percentile(100));
+        }
+        for (Map.Entry<String, String> sample : failureSamples.entrySet()) {
+            System.out.println("  failed " + sample.getValue() + ": " + sample.getKey());
+        }
+        System.out.println(ModelCache.stats());
+        System.out.println(Deadline.stats());
+        System.out.println(Retry.stats());
+        if (ConnectionManager.hasReplica()) {
+            System.out.println(ReplicaRouter.stats());
+        }
+        if (WaitingRoom.isEnabled()) {
+            System.out.println(WaitingRoom.getReserve());
+        }
+        if (ChangeFeed.getRunning() != null) {
+            System.out.println(ChangeFeed.getRunning());
+        }
+    }
+
+    private String pickOperation() {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        int pick = ThreadLocalRandom.current().nextInt(total);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    // what a command's reply says about it, see the class comment
+    private static Outcome classify(String operation, String output) {
+        // show_appointments says nothing when there is nothing to show, every other command always replies
+        if (output.isBlank()) {
+            return operation.equals("show") ? Outcome.OK : Outcome.FAILED;
+        }
+        for (String failure : FAILURES) {
+            if (output.contains(failure)) {
+                return Outcome.FAILED;
+            }
+        }
+        for (String rejection : REJECTIONS) {
+            if (output.contains(rejection)) {
+                return Outcome.REJECTED;
+            }
+        }
+        return Outcome.OK;
+    }
+
+    // runs one command as a random synthetic user, the reply goes to out
+    private void execute(String operation, int days, PrintStream out) throws SQLException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String date = firstDay.plusDays(random.nextInt(days)).toString();
+        String vaccine = vaccines.get(random.nextInt(vaccines.size()));
+        Session patient = new Session(patientSessions.get(random.nextInt(patientSessions.size())), out);
+        Session caregiver = new Session(caregiverSessions.get(random.nextInt(caregiverSessions.size())), out);
+        if (operation.equals("reserve")) {
+            Scheduler.execute(patient, new String[]{"reserve", date, vaccine});
+        } else if (operation.equals("search")) {
+            Scheduler.execute(patient, new String[]{"search_caregiver_schedule", date});
+        } else if (operation.equals("add_doses")) {
+            Scheduler.execute(caregiver, new String[]{"add_doses", vaccine, String.valueOf(1 + random.nextInt(10))});
+        } else if (operation.equals("show")) {
+            Scheduler.execute(random.nextBoolean() ? patient : caregiver, new String[]{"show_appointments"});
+        } else {
+            throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    // check the rows this run created, returns true if every invariant holds
+    public boolean checkInvariants() throws SQLException {
+        int days = getInt("days", 30);
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            System.out.println();
+            boolean ok = true;
+
+            String doubleBooked = "SELECT Caregiver_Name, Time, Slot, COUNT(*) AS Bookings FROM Appointments " +
+                    "WHERE Caregiver_Name LIKE ? GROUP BY Caregiver_Name, Time, Slot HAVING COUNT(*) > 1";
+            ok &= report(con, doubleBooked, "caregiver double-booked in a slot",
+                    prefix + "%");
+
+            String negativeDoses = "SELECT Name, Doses FROM Vaccines WHERE Name LIKE ? AND Doses < 0";
+            ok &= report(con, negativeDoses, "vaccine with negative doses", prefix + "%");
+
+            // every appointment must sit on a date this run offered
+            String unmatched = "SELECT a.ID, a.Caregiver_Name, a.Time FROM Appointments a " +
+                    "WHERE a.Caregiver_Name LIKE ? AND (a.Time < ? OR a.Time >= ?)";
+            ok &= report(con, unmatched, "appointment outside the offered dates", prefix + "%",
+                    Date.valueOf(firstDay), Date.valueOf(firstDay.plusDays(days)));
+
+            // and every booked slot is held by exactly one appointment, every appointment by a booked slot
+            ok &= checkSlots(con);
+
+            System.out.println(ok ? "All invariants hold" : "Invariant violations found");
+            return ok;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // reads every availability's bitmap into a SlotMap and matches the appointments of its caregiver and day
+    // against it, slot by slot
+    private boolean checkSlots(Connection con) throws SQLException {
+        String getAvailabilities = "SELECT Username, Time, StartMinute, EndMinute, SlotMinutes, Booked, FreeSlots " +
+                "FROM Availabilities WHERE Username LIKE ?";
+        String getAppointments = "SELECT ID, Caregiver_Name, Time, Slot FROM Appointments WHERE Caregiver_Name LIKE ?";
+        Map<List<Object>, SlotMap> availabilities = new HashMap<>();
+        List<String> freeCounts = new ArrayList<>();
+        PreparedStatement statement = con.prepareStatement(getAvailabilities);
+        statement.setString(1, prefix + "%");
+        ResultSet resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+            SlotMap slots = SlotMap.fromBytes(resultSet.getInt("StartMinute"), resultSet.getInt("EndMinute"),
+                    resultSet.getInt("SlotMinutes"), resultSet.getBytes("Booked"));
+            List<Object> day = List.of(resultSet.getString("Username"), resultSet.getDate("Time"));
+            availabilities.put(day, slots);
+            if (slots.getFreeSlots() != resultSet.getInt("FreeSlots")) {
+                freeCounts.add(day + " FreeSlots " + resultSet.getInt("FreeSlots") + ", bitmap " +
+                        slots.getFreeSlots());
+            }
+        }
+
+        List<String> unheld = new ArrayList<>();
+        Map<List<Object>, Integer> holders = new HashMap<>();
+        statement = con.prepareStatement(getAppointments);
+        statement.setString(1, prefix + "%");
+        resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+            List<Object> day = List.of(resultSet.getString("Caregiver_Name"), resultSet.getDate("Time"));
+            int slot = resultSet.getInt("Slot");
+            SlotMap slots = availabilities.get(day);
+            boolean wholeDay = slots != null && slots.getSlotCount() == 1 &&
+                    slots.getSlotMinutes() >= SlotMap.MINUTES_PER_DAY;
+            int index = slots == null ? -1 : slots.slotAt(Appointment.startMinute(slot));
+            if (index < 0 || slots.minuteOf(index) != Appointment.startMinute(slot) || slots.isFree(index) ||
+                    wholeDay != (slot == Appointment.WHOLE_DAY)) {
+                unheld.add("#" + resultSet.getInt("ID") + " " + day + " slot " + slot);
+                continue;
+            }
+            holders.merge(List.of(day.get(0), day.get(1), index), 1, Integer::sum);
+        }
+
+        List<String> unbooked = new ArrayList<>();
+        for (Map.Entry<List<Object>, SlotMap> entry : availabilities.entrySet()) {
+            SlotMap slots = entry.getValue();
+            for (int index = 0; index < slots.getSlotCount(); index++) {
+                if (!slots.isFree(index) &&
+                        holders.getOrDefault(List.of(entry.getKey().get(0), entry.getKey().get(1), index), 0) != 1) {
+                    unbooked.add(entry.getKey() + " " + SlotMap.formatMinute(slots.minuteOf(index)));
+                }
+            }
+        }
+        boolean ok = report("availability whose FreeSlots disagrees with its bitmap", freeCounts);
+        ok &= report("appointment not on a booked slot of its caregiver", unheld);
+        ok &= report("booked slot not held by exactly one appointment", unbooked);
+        return ok;
+    }
+
+    private static boolean report(Connection con, String query, String description, Object... params)
+            throws SQLException {
+        PreparedStatement statement = con.prepareStatement(query);
+        for (int i = 0; i < params.length; i++) {
+            statement.setObject(i + 1, params[i]);
+        }
+        ResultSet resultSet = statement.executeQuery();
+        int columns = resultSet.getMetaData().getColumnCount();
+        List<String> violations = new ArrayList<>();
+        while (resultSet.next()) {
+            String[] row = new String[columns];
+            for (int i = 0; i < columns; i++) {
+                row[i] = resultSet.getString(i + 1);
+            }
+            violations.add(Arrays.toString(row));
+        }
+        return report(description, violations);
+    }
+
+    private static boolean report(String description, List<String> violations) {
+        for (int i = 0; i < violations.size() && i < 10; i++) {
+            System.out.println("  violation: " + description + " " + violations.get(i));
+        }
+        System.out.println((violations.isEmpty() ? "OK   " : "FAIL ") + description + ": " + violations.size());
+        return violations.isEmpty();
+    }
+
+    // remove everything this run created, in one transaction so the day totals are taken back exactly once
+    public void cleanup() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            String[] deletes = {
+                    // DayUtilization has no names, it is the sum of CaregiverUtilization, so subtract the run's part
+                    "UPDATE DayUtilization SET OfferedSlots = OfferedSlots - " +
+                            "(SELECT COALESCE(SUM(c.OfferedSlots), 0) FROM CaregiverUtilization c " +
+                            "WHERE c.Day = DayUtilization.Day AND c.Caregiver_Name LIKE ?), " +
+                            "BookedSlots = BookedSlots - (SELECT COALESCE(SUM(c.BookedSlots), 0) " +
+                            "FROM CaregiverUtilization c WHERE c.Day = DayUtilization.Day AND c.Caregiver_Name LIKE ?)",
+                    "DELETE FROM CaregiverUtilization WHERE Caregiver_Name LIKE ?",
+                    "DELETE FROM VaccineUtilization WHERE Vaccine_Name LIKE ?",
+                    "DELETE FROM IdempotencyKeys WHERE Username LIKE ?",
+                    "DELETE FROM AppointmentsHistory WHERE Caregiver_Name LIKE ?",
+                    "DELETE FROM AvailabilitiesHistory WHERE Username LIKE ?",
+                    "DELETE FROM Appointments WHERE Caregiver_Name LIKE ?",
+                    "DELETE FROM Availabilities WHERE Username LIKE ?",
+                    "DELETE FROM DoseLots WHERE Vaccine_Name LIKE ?",
+                    "DELETE FROM Vaccines WHERE Name LIKE ?",
+                    "DELETE FROM Caregivers WHERE Username LIKE ?",
+                    "DELETE FROM Patients WHERE Username LIKE ?"
+            };
+            for (String delete : deletes) {
+                PreparedStatement statement = con.prepareStatement(delete);
+                for (int i = 1; i <= statement.getParameterMetaData().getParameterCount(); i++) {
+                    statement.setString(i, prefix + "%");
+                }
+                statement.executeUpdate();
+            }
+            con.commit();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private enum Outcome {
+        OK, REJECTED, FAILED
+    }
+
+    // latencies of the commands that got an answer, and how many of each outcome there were
+    private static class LatencyRecorder {
+        private long[] samples = new long[1024];
+        private int size = 0;
+        private final int[] outcomes = new int[Outcome.values().length];
+
+        synchronized void record(Outcome outcome, long nanos) {
+            outcomes[outcome.ordinal()]++;
+            if (outcome == Outcome.FAILED) {
+                return;
+            }
+            if (size == samples.length) {
+                samples = Arrays.copyOf(samples, size * 2);
+            }
+            samples[size++] = nanos;
+        }
+
+        synchronized int count(Outcome outcome) {
+            return outcomes[outcome.ordinal()];
+        }
+
+        // percentile in milliseconds, 100 gives the maximum
+        synchronized double percentile(double p) {
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p / 100.0 * size) - 1;
+            return sorted[Math.max(0, Math.min(index, size - 1))] / 1e6;
+        }
+    }
+}
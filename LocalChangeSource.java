@@ -0,0 +1,50 @@
+package scheduler.feed;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// in-process stand-in for ChangeTrackingSource, for running a ChangeFeed without SQL Server: whoever plays the other
+// nodes records their changes here. Keeps the last capacity changes, like change tracking's retention period
+public class LocalChangeSource implements ChangeSource {
+
+    private final int capacity;
+    private final List<Change> changes = new ArrayList<>();
+    private long version = 0;
+
+    public LocalChangeSource(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive!");
+        }
+        this.capacity = capacity;
+    }
+
+    public synchronized long record(String table, String key) {
+        version++;
+        changes.add(new Change(version, table, key));
+        if (changes.size() > capacity) {
+            changes.subList(0, changes.size() - capacity).clear();
+        }
+        return version;
+    }
+
+    @Override
+    public synchronized long currentVersion() {
+        return version;
+    }
+
+    @Override
+    public synchronized long minValidVersion() {
+        return changes.isEmpty() ? version : changes.get(0).getVersion() - 1;
+    }
+
+    @Override
+    public synchronized List<Change> changesSince(long since) {
+        List<Change> result = new ArrayList<>();
+        for (Change change : changes) {
+            if (change.getVersion() > since) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+}
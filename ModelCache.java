@@ -0,0 +1,54 @@
+package scheduler.model;
+
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+public class ModelCache {
+
+    // Note: only names and dose counts are cached. Caregiver and Patient objects carry the salt and hash, so
+    //       they are never put in a cache and logins always go to the database.
+    private static final int maxEntries = System.getenv("CacheMaxEntries") == null ? 10000 :
+            Integer.parseInt(System.getenv("CacheMaxEntries"));
+    private static final long ttlMillis = System.getenv("CacheTtlSeconds") == null ? 30_000 :
+            Long.parseLong(System.getenv("CacheTtlSeconds")) * 1000;
+
+    // vaccine name -> doses and row version as last read
+    public static final Cache<String, Vaccine> VACCINES = new Cache<>("vaccines", maxEntries, ttlMillis);
+    // the whole Vaccines table as shown by search_caregiver_schedule, kept under a single key
+    public static final Cache<String, LinkedHashMap<String, Integer>> ALL_VACCINES =
+            new Cache<>("allVaccines", 1, ttlMillis);
+    // username -> whether it is taken
+    public static final Cache<String, Boolean> CAREGIVER_NAMES = new Cache<>("caregiverNames", maxEntries, ttlMillis);
+    public static final Cache<String, Boolean> PATIENT_NAMES = new Cache<>("patientNames", maxEntries, ttlMillis);
+    // date -> caregivers with a free slot that day, as shown by search_caregiver_schedule
+    public static final Cache<Date, ArrayList<String>> OPEN_CAREGIVERS =
+            new Cache<>("openCaregivers", maxEntries, ttlMillis);
+
+    public static final String ALL = "all";
+
+    // called after every write to the Vaccines table
+    public static void invalidateVaccine(String vaccineName) {
+        VACCINES.invalidate(vaccineName);
+        ALL_VACCINES.invalidate(ALL);
+    }
+
+    // called after every write to the Availabilities rows of the date
+    public static void invalidateAvailability(Date date) {
+        OPEN_CAREGIVERS.invalidate(date);
+    }
+
+    // drops everything, for when changes made elsewhere may have been missed
+    public static void invalidateAll() {
+        VACCINES.invalidateAll();
+        ALL_VACCINES.invalidateAll();
+        CAREGIVER_NAMES.invalidateAll();
+        PATIENT_NAMES.invalidateAll();
+        OPEN_CAREGIVERS.invalidateAll();
+    }
+
+    public static String stats() {
+        return VACCINES + "\n" + ALL_VACCINES + "\n" + CAREGIVER_NAMES + "\n" + PATIENT_NAMES + "\n" +
+                OPEN_CAREGIVERS;
+    }
+}
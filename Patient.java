@@ -39,16 +39,18 @@ public class Patient {
         ConnectionManager cm = new ConnectionManager();
         Connection c = cm.createConnection();
 
-        String addPatient = "INSERT INTO Patients VALUES (?, ?, ?)";
+        String addPatient = "INSERT INTO Patients (Username, Salt, Hash) VALUES (?, ?, ?)";
         try {
             PreparedStatement statement = c.prepareStatement(addPatient);
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.salt);
+            statement.setBytes(3, this.hash);
+            statement.executeUpdate();
         } catch (SQLException e) {
             throw new SQLException();
         } finally {
             cm.closeConnection();
+            ModelCache.PATIENT_NAMES.invalidate(this.username);
         }
     }
 
@@ -56,7 +58,7 @@ public class Patient {
         ConnectionManager cm = new ConnectionManager();
         Connection c = cm.createConnection();
 
-        String addAvailability = "INSERT INTO Availabilities VALUES (?, ?)";
+        String addAvailability = "INSERT INTO Availabilities (Time, Username) VALUES (?, ?)";
         try {
             PreparedStatement statement = c.prepareStatement(addAvailability);
             statement.setDate(1, d);
@@ -102,7 +104,7 @@ public class Patient {
 
             String getPatient = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
             try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
+                PreparedStatement statement = c.prepareStatement(getPatient);
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
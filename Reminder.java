@@ -0,0 +1,50 @@
+package scheduler.reminder;
+
+// a pending reminder, linked directly into its timing wheel bucket so that cancelling it is O(1)
+public class Reminder {
+    private final int appointmentId;
+    private final String patientName;
+    private final long appointmentTime;
+    private final long deadline;
+
+    // bucket membership, owned by TimingWheel
+    Reminder prev;
+    Reminder next;
+    TimingWheel.Bucket bucket;
+
+    Reminder(int appointmentId, String patientName, long appointmentTime, long deadline) {
+        this.appointmentId = appointmentId;
+        this.patientName = patientName;
+        this.appointmentTime = appointmentTime;
+        this.deadline = deadline;
+    }
+
+    // Getters
+    public int getAppointmentId() {
+        return appointmentId;
+    }
+
+    public String getPatientName() {
+        return patientName;
+    }
+
+    // the appointment date in epoch millis
+    public long getAppointmentTime() {
+        return appointmentTime;
+    }
+
+    // when the reminder is due, in epoch millis
+    public long getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public String toString() {
+        return "Reminder{" +
+                "appointmentId=" + appointmentId +
+                ", patientName='" + patientName + '\'' +
+                ", appointmentTime=" + new java.sql.Date(appointmentTime) +
+                ", deadline=" + deadline +
+                '}';
+    }
+}
@@ -0,0 +1,9 @@
+package scheduler.reminder;
+
+import java.util.List;
+
+public interface ReminderListener {
+
+    // called with every reminder that came due during one tick
+    void onReminders(List<Reminder> due);
+}
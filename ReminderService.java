@@ -0,0 +1,215 @@
+package scheduler.reminder;
+
+import scheduler.db.ConnectionManager;
+import scheduler.events.ChangeEvent;
+import scheduler.events.ChangeEvents;
+import scheduler.events.EventSubscriber;
+import scheduler.model.Appointment;
+import scheduler.model.Availability;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// keeps one reminder per upcoming appointment in a timing wheel. Appointments are loaded a date window at a time,
+// new bookings and cancellations arrive through the change event ring
+public class ReminderService implements EventSubscriber {
+
+    private static final long TICK_MILLIS = 1000;
+
+    private final TimingWheel wheel;
+    private final Map<Integer, Reminder> pending = new HashMap<>();
+    private final ReminderListener listener;
+    private final long leadMillis;
+    private final int windowDays;
+
+    // appointments before this date are in the wheel, later ones are left to the next window
+    private LocalDate loadedUntil;
+    // while a window is being read: its end, and the cancellations seen meanwhile so the load doesn't bring them back
+    private LocalDate loadingUntil = null;
+    private Set<Integer> cancelledDuringLoad = null;
+
+    public ReminderService(ReminderListener listener, long leadMillis, int windowDays) {
+        // 256 one-second buckets per level and 4 levels cover 2^32 seconds without touching the overflow bucket
+        this.wheel = new TimingWheel(TICK_MILLIS, 8, 4, System.currentTimeMillis());
+        this.listener = listener;
+        this.leadMillis = leadMillis;
+        this.windowDays = windowDays;
+        this.loadedUntil = LocalDate.now();
+    }
+
+    // starts reminders when ReminderFile is set, due reminders are appended to that file one line each
+    public static void startIfConfigured() {
+        String file = System.getenv("ReminderFile");
+        if (file == null) {
+            return;
+        }
+        String leadHours = System.getenv("ReminderLeadHours");
+        String windowDays = System.getenv("ReminderWindowDays");
+        ReminderService service = new ReminderService(new FileReminderListener(file),
+                TimeUnit.HOURS.toMillis(leadHours == null ? 24 : Long.parseLong(leadHours)),
+                windowDays == null ? 7 : Integer.parseInt(windowDays));
+        ChangeEvents.RING.subscribe("reminders", service);
+        service.start();
+    }
+
+    public void start() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "reminders");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                loadWindow();
+            } catch (SQLException e) {
+                System.out.println("Error occurred when loading reminders: " + e);
+            }
+        }, 0, 1, TimeUnit.HOURS);
+        executor.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void schedule(int appointmentId, String patientName, Date d) {
+        cancel(appointmentId);
+        Reminder reminder = new Reminder(appointmentId, patientName, d.getTime(), d.getTime() - leadMillis);
+        pending.put(appointmentId, reminder);
+        wheel.add(reminder);
+    }
+
+    public synchronized boolean cancel(int appointmentId) {
+        if (cancelledDuringLoad != null) {
+            cancelledDuringLoad.add(appointmentId);
+        }
+        Reminder reminder = pending.remove(appointmentId);
+        if (reminder == null) {
+            return false;
+        }
+        wheel.cancel(reminder);
+        return true;
+    }
+
+    public synchronized int size() {
+        return wheel.size();
+    }
+
+    // fires everything that came due since the last tick as one batch
+    void tick() {
+        List<Reminder> due = new ArrayList<>();
+        synchronized (this) {
+            wheel.advance(System.currentTimeMillis(), due);
+            for (Reminder reminder : due) {
+                pending.remove(reminder.getAppointmentId());
+            }
+        }
+        if (!due.isEmpty()) {
+            try {
+                listener.onReminders(due);
+            } catch (RuntimeException e) {
+                System.out.println("Error occurred when sending reminders: " + e);
+            }
+        }
+    }
+
+    // reads the appointments between loadedUntil and the end of the window, one date range per call. A reminder that
+    // came due before the load was sent by an earlier run, and an appointment that has started needs none, so
+    // neither is scheduled and a restart doesn't send them again
+    void loadWindow() throws SQLException {
+        long now = System.currentTimeMillis();
+        LocalDate from;
+        LocalDate until = LocalDate.now().plusDays(windowDays);
+        synchronized (this) {
+            from = loadedUntil;
+            if (!from.isBefore(until)) {
+                return;
+            }
+            loadingUntil = until;
+            cancelledDuringLoad = new HashSet<>();
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getAppointments = "SELECT ID, Time, Slot, Patient_Name FROM Appointments WHERE Time >= ? AND Time < ?";
+        try {
+            PreparedStatement statement = con.prepareStatement(getAppointments);
+            statement.setDate(1, Date.valueOf(from));
+            statement.setDate(2, Date.valueOf(until));
+            ResultSet resultSet = statement.executeQuery();
+            List<Reminder> loaded = new ArrayList<>();
+            while (resultSet.next()) {
+                Date d = Availability.slotTime(resultSet.getDate("Time"),
+                        Appointment.startMinute(resultSet.getInt("Slot")));
+                if (d.getTime() <= now || d.getTime() - leadMillis < now) {
+                    continue;
+                }
+                loaded.add(new Reminder(resultSet.getInt("ID"), resultSet.getString("Patient_Name"), d.getTime(),
+                        d.getTime() - leadMillis));
+            }
+            synchronized (this) {
+                for (Reminder reminder : loaded) {
+                    if (!cancelledDuringLoad.contains(reminder.getAppointmentId())
+                            && !pending.containsKey(reminder.getAppointmentId())) {
+                        pending.put(reminder.getAppointmentId(), reminder);
+                        wheel.add(reminder);
+                    }
+                }
+                loadedUntil = until;
+            }
+        } finally {
+            synchronized (this) {
+                loadingUntil = null;
+                cancelledDuringLoad = null;
+            }
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void onEvent(ChangeEvent event, long sequence, boolean endOfBatch) {
+        if (event.getType() == ChangeEvent.Type.APPOINTMENT_CREATED) {
+            Date d = new Date(event.getTime());
+            synchronized (this) {
+                // anything past the loaded (or loading) window is picked up when the window gets there, and a slot
+                // that has already started needs no reminder
+                if (d.toLocalDate().isBefore(loadingUntil != null ? loadingUntil : loadedUntil)
+                        && d.getTime() > System.currentTimeMillis()) {
+                    schedule(event.getAppointmentId(), event.getPatientName(), d);
+                }
+            }
+        } else if (event.getType() == ChangeEvent.Type.APPOINTMENT_CANCELLED) {
+            cancel(event.getAppointmentId());
+        }
+    }
+
+    // appends due reminders to a file, for an SMS gateway or similar to pick up
+    static class FileReminderListener implements ReminderListener {
+        private final String path;
+
+        FileReminderListener(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void onReminders(List<Reminder> due) {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(path, true))) {
+                for (Reminder reminder : due) {
+                    writer.write(reminder.getPatientName() + " has appointment #" + reminder.getAppointmentId() +
+                            " on " + new Date(reminder.getAppointmentTime()));
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
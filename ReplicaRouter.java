@@ -0,0 +1,192 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a read may go to the replica, see ConnectionManager.Route.
+ *
+ * Every ReplicaLagCheckMillis (default 1000) a heartbeat bumps a counter on the primary, then reads it back from the
+ * replica. Replication applies the log in commit order, so once the replica shows the counter of a beat, every write
+ * this node finished before that beat started is on the replica as well. That start time is how far the replica
+ * has caught up with this node, measured on this node's clock, so clock skew between servers does not matter:
+ * - a session's reads go to the replica once it has caught up with the session's last write (read-your-writes),
+ * - reads that fill caches shared by all sessions once it has caught up with every write of this node,
+ * - no reads at all while it is more than ReplicaMaxLagMillis (default 5000) behind, or its breaker is open.
+ * Everything else is served by the primary.
+ *
+ * Writes are noticed by GuardedConnection, on statements that can write and on commit.
+ */
+public class ReplicaRouter {
+
+    private static final long lagCheckMillis = System.getenv("ReplicaLagCheckMillis") == null ? 1000 :
+            Long.parseLong(System.getenv("ReplicaLagCheckMillis"));
+    private static final long maxLagNanos = TimeUnit.MILLISECONDS.toNanos(
+            System.getenv("ReplicaMaxLagMillis") == null ? 5000 : Long.parseLong(System.getenv("ReplicaMaxLagMillis")));
+    // beats the replica has not shown yet, older ones are dropped, which only makes the router more careful
+    private static final int maxPendingBeats = 1000;
+
+    // when one session last wrote, kept on the session and bound to the thread while it runs a command
+    public static class Writes {
+        private final AtomicLong lastWrite = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    private static final ThreadLocal<Writes> current = new ThreadLocal<>();
+    private static final AtomicLong lastWrite = new AtomicLong(Long.MIN_VALUE);
+
+    // start time of the newest beat the replica has shown, valid once caughtUpKnown
+    private static volatile long caughtUp;
+    private static volatile boolean caughtUpKnown = false;
+    // (beat number, start time) of the beats still on their way to the replica, only used by the heartbeat thread
+    private static final ArrayDeque<long[]> pendingBeats = new ArrayDeque<>();
+
+    private static final LongAdder replicaReads = new LongAdder();
+    private static final LongAdder laggingReads = new LongAdder();
+    private static final LongAdder stickyReads = new LongAdder();
+    private static final LongAdder fallbacks = new LongAdder();
+    private static volatile boolean failing = false;
+
+    // the session's writes are tracked on this thread until the returned binding is restored
+    public static Writes bind(Writes writes) {
+        Writes previous = current.get();
+        current.set(writes);
+        return previous;
+    }
+
+    public static Writes current() {
+        return current.get();
+    }
+
+    // runs a task of the bound session on another thread, used by AsyncQuery
+    static <T> T runUnder(Writes writes, AsyncQuery.Query<T> query) throws SQLException {
+        Writes outer = bind(writes);
+        try {
+            return query.run();
+        } finally {
+            bind(outer);
+        }
+    }
+
+    // a write on the primary finished
+    static void wrote() {
+        long now = System.nanoTime();
+        lastWrite.accumulateAndGet(now, Math::max);
+        Writes writes = current.get();
+        if (writes != null) {
+            writes.lastWrite.accumulateAndGet(now, Math::max);
+        }
+    }
+
+    // another node changed data this node caches, shared reads wait for the replica to catch up with it as well
+    public static void changedElsewhere() {
+        lastWrite.accumulateAndGet(System.nanoTime(), Math::max);
+    }
+
+    static boolean canRead(boolean shared) {
+        if (!caughtUpKnown || System.nanoTime() - caughtUp > maxLagNanos) {
+            laggingReads.increment();
+            return false;
+        }
+        Writes writes = current.get();
+        long since = shared ? lastWrite.get() : (writes == null ? Long.MIN_VALUE : writes.lastWrite.get());
+        // nanoTime values are only compared by their difference
+        if (since != Long.MIN_VALUE && caughtUp - since <= 0) {
+            stickyReads.increment();
+            return false;
+        }
+        replicaReads.increment();
+        return true;
+    }
+
+    static void fellBack() {
+        replicaReads.decrement();
+        fallbacks.increment();
+    }
+
+    static void start() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                beat();
+                failing = false;
+            } catch (SQLException | RuntimeException e) {
+                // the lag keeps growing until a beat gets through, reads fall back to the primary on their own
+                if (!failing) {
+                    System.out.println("Error occurred when checking the replica lag: " + e);
+                    failing = true;
+                }
+            }
+        }, 0, lagCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void beat() throws SQLException {
+        long startedAt = System.nanoTime();
+        // the heartbeat itself is not a write anybody has to wait for
+        ConnectionManager primary = ConnectionManager.forHeartbeat(false);
+        Connection con = primary.createConnection();
+
+        String addBeat = "UPDATE ReplicaHeartbeat SET Beat = Beat + 1 WHERE Id = 1";
+        String getBeat = "SELECT Beat FROM ReplicaHeartbeat WHERE Id = 1";
+        try {
+            // the beat is read back in the transaction that bumped it, so it is this node's beat
+            con.setAutoCommit(false);
+            con.prepareStatement(addBeat).executeUpdate();
+            ResultSet resultSet = con.prepareStatement(getBeat).executeQuery();
+            if (!resultSet.next()) {
+                throw new SQLException("ReplicaHeartbeat has no row, see migrations.sql");
+            }
+            long beat = resultSet.getLong("Beat");
+            resultSet.close();
+            con.commit();
+            pendingBeats.add(new long[]{beat, startedAt});
+            if (pendingBeats.size() > maxPendingBeats) {
+                pendingBeats.poll();
+            }
+        } finally {
+            primary.closeConnection();
+        }
+
+        ConnectionManager replica = ConnectionManager.forHeartbeat(true);
+        con = replica.createConnection();
+
+        try {
+            PreparedStatement statement = con.prepareStatement(getBeat);
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            long shown = resultSet.getLong("Beat");
+            long[] newest = null;
+            while (!pendingBeats.isEmpty() && pendingBeats.peek()[0] <= shown) {
+                newest = pendingBeats.poll();
+            }
+            if (newest != null) {
+                caughtUp = newest[1];
+                caughtUpKnown = true;
+            }
+        } finally {
+            replica.closeConnection();
+        }
+    }
+
+    // how far behind this node the replica may be, -1 before the first beat came through
+    public static long getLagMillis() {
+        return caughtUpKnown ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - caughtUp) : -1;
+    }
+
+    public static String stats() {
+        return "replica: lag " + getLagMillis() + " ms, " + replicaReads.sum() + " reads on the replica, " +
+                laggingReads.sum() + " on the primary for lag, " + stickyReads.sum() + " for recent writes, " +
+                fallbacks.sum() + " after the replica failed";
+    }
+}
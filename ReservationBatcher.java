@@ -0,0 +1,412 @@
+package scheduler.batch;
+
+import scheduler.db.AsyncQuery;
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.events.ChangeEvents;
+import scheduler.model.Appointment;
+import scheduler.model.Availability;
+import scheduler.model.ConcurrencyControl;
+import scheduler.model.ConcurrentUpdateException;
+import scheduler.model.DoseLots;
+import scheduler.model.IdempotencyKeys;
+import scheduler.model.ModelCache;
+import scheduler.model.Utilization;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch mode for reserve.
+ *
+ * Requests are collected for a short window, then the whole batch is allocated in memory from one read of the
+ * open availabilities on the requested dates and one read of the requested vaccines, and committed in a single
+ * transaction. The database work per batch is the same few round trips whatever the batch size. If another writer
+ * took an availability or dose in between, the transaction is rolled back and the batch is allocated again.
+ */
+public class ReservationBatcher implements Runnable {
+
+    private static final String windowMillis = System.getenv("ReserveBatchWindowMillis");
+    private static final int maxBatch = System.getenv("ReserveBatchSize") == null ? 500 :
+            Integer.parseInt(System.getenv("ReserveBatchSize"));
+    private static ReservationBatcher instance = null;
+
+    private final BlockingQueue<ReservationRequest> queue = new LinkedBlockingQueue<>();
+    private final long window;
+
+    private ReservationBatcher(long window) {
+        this.window = window;
+    }
+
+    // batch mode is on when ReserveBatchWindowMillis is set
+    public static boolean isEnabled() {
+        return windowMillis != null;
+    }
+
+    public static CompletableFuture<ReservationResult> submit(ReservationRequest request) {
+        getInstance().queue.add(request);
+        return request.getResult();
+    }
+
+    private static synchronized ReservationBatcher getInstance() {
+        if (instance == null) {
+            instance = new ReservationBatcher(Long.parseLong(windowMillis));
+            Thread t = new Thread(instance, "reservation-batcher");
+            t.setDaemon(true);
+            t.start();
+        }
+        return instance;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<ReservationRequest> batch = new ArrayList<>();
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(window);
+                while (batch.size() < maxBatch) {
+                    long wait = deadline - System.nanoTime();
+                    ReservationRequest next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            process(batch);
+        }
+    }
+
+    private void process(List<ReservationRequest> batch) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                allocate(batch);
+                return;
+            } catch (ConcurrentUpdateException e) {
+                ConcurrencyControl.recordConflict();
+                if (attempt >= ConcurrencyControl.BACKOFF.getMaxAttempts()) {
+                    fail(batch, e);
+                    return;
+                }
+                ConcurrencyControl.BACKOFF.pause(attempt);
+            } catch (SQLException e) {
+                // a deadlock victim was rolled back, the batch is allocated again from fresh reads. So is a batch
+                // that lost an idempotency key to a concurrent run, the next allocation finds the key stored
+                boolean retry = Retry.isTransient(e) || ConnectionManager.isDuplicateKey(e);
+                if (!retry || attempt >= ConcurrencyControl.BACKOFF.getMaxAttempts()) {
+                    fail(batch, e);
+                    return;
+                }
+                ConcurrencyControl.BACKOFF.pause(attempt);
+            } catch (RuntimeException e) {
+                fail(batch, e);
+                return;
+            }
+        }
+    }
+
+    private static void fail(List<ReservationRequest> batch, Exception e) {
+        for (ReservationRequest request : batch) {
+            request.getResult().completeExceptionally(e);
+        }
+    }
+
+    // one pass over the batch in arrival order: every request gets the first free slot from its earliest time on the
+    // first preferred date that still has one, as long as its vaccine still has doses left
+    private void allocate(List<ReservationRequest> batch) throws SQLException {
+        Map<ReservationRequest, ReservationResult> results = new HashMap<>();
+        List<ReservationRequest> fresh = replays(batch, results);
+        if (fresh.isEmpty()) {
+            for (ReservationRequest request : batch) {
+                request.getResult().complete(results.get(request));
+            }
+            return;
+        }
+        Set<Date> dates = new LinkedHashSet<>();
+        Set<String> vaccines = new LinkedHashSet<>();
+        for (ReservationRequest request : fresh) {
+            dates.addAll(request.getDates());
+            vaccines.add(request.getVaccineName());
+        }
+        CompletableFuture<List<Availability>> open = AsyncQuery.submit(() ->
+                new Availability.AvailabilityGetter(dates).get());
+        // doses without a lot per vaccine, the ones a request takes when no lot is valid on its date
+        Map<String, Integer> lotless = new HashMap<>();
+        CompletableFuture<Map<String, Integer>> stock = AsyncQuery.submit(() -> getDoses(vaccines, lotless));
+
+        Map<LocalDate, ArrayDeque<Availability>> caregivers = new HashMap<>();
+        for (Availability availability : AsyncQuery.await(open)) {
+            caregivers.computeIfAbsent(availability.getTime().toLocalDate(), k -> new ArrayDeque<>())
+                    .add(availability);
+        }
+        Map<String, Integer> doses = AsyncQuery.await(stock);
+        Map<String, Integer> used = new HashMap<>();
+
+        List<ReservationRequest> booked = new ArrayList<>();
+        // every availability that had a slot booked and how many, written back once however many slots it gave
+        Map<Availability, Integer> claimed = new LinkedHashMap<>();
+        // the dose lot of every booked request that got one
+        Map<ReservationRequest, String> lots = new HashMap<>();
+        for (ReservationRequest request : fresh) {
+            String vaccine = request.getVaccineName();
+            Integer left = doses.get(vaccine);
+            if (left == null) {
+                results.put(request, ReservationResult.rejected("Please enter a valid vaccine!"));
+                continue;
+            }
+            if (left == 0) {
+                results.put(request, ReservationResult.rejected("There are 0 doses of this vaccine available!"));
+                continue;
+            }
+            Availability availability = null;
+            int minute = -1;
+            for (Date d : request.getDates()) {
+                ArrayDeque<Availability> onDate = caregivers.get(d.toLocalDate());
+                Iterator<Availability> candidates = onDate == null ? Collections.emptyIterator() : onDate.iterator();
+                while (availability == null && candidates.hasNext()) {
+                    Availability candidate = candidates.next();
+                    // booked out for every request, or only too early for this one
+                    if (candidate.firstFree(0) < 0) {
+                        candidates.remove();
+                        continue;
+                    }
+                    minute = candidate.firstFree(request.getFromMinute());
+                    if (minute >= 0) {
+                        availability = candidate;
+                    }
+                }
+                if (availability != null) {
+                    break;
+                }
+            }
+            if (availability == null) {
+                results.put(request,
+                        ReservationResult.rejected("There are no caregivers available for your selected date!"));
+                continue;
+            }
+            // the in-memory lot counts only pick the lot, the commit checks it still has the doses
+            String lot = DoseLots.allocate(vaccine, availability.getTime());
+            if (lot != null) {
+                lots.put(request, lot);
+            } else if (lotless.getOrDefault(vaccine, 0) > 0) {
+                lotless.merge(vaccine, -1, Integer::sum);
+            } else {
+                results.put(request, ReservationResult.rejected("There are no doses of this vaccine that are " +
+                        "still valid on " + availability.getTime() + "!"));
+                continue;
+            }
+            // the slot is booked in the in-memory copy, the commit writes the updated bitmap
+            availability.getSlots().book(availability.getSlots().slotAt(minute));
+            doses.put(vaccine, left - 1);
+            used.merge(vaccine, 1, Integer::sum);
+            booked.add(request);
+            claimed.merge(availability, 1, Integer::sum);
+            // the appointment ID is drawn by the commit
+            results.put(request, ReservationResult.booked(0, availability.getUsername(), availability.getTime(),
+                    minute, availability.isWholeDay()));
+        }
+
+        if (!booked.isEmpty()) {
+            try {
+                commit(booked, claimed, used, results, lots);
+            } catch (SQLException | RuntimeException e) {
+                // the doses were not taken, the lots are read again before the batch is allocated again
+                for (String vaccine : used.keySet()) {
+                    DoseLots.invalidate(vaccine);
+                }
+                throw e;
+            }
+        }
+        for (ReservationRequest request : batch) {
+            request.getResult().complete(results.get(request));
+        }
+        for (int i = 0; i < booked.size(); i++) {
+            ReservationResult result = results.get(booked.get(i));
+            int slot = result.isWholeDay() ? Appointment.WHOLE_DAY : result.getSlot();
+            ChangeEvents.RING.publishAvailabilityRemoved(result.getCaregiverName(), result.getTime(), slot);
+            ChangeEvents.RING.publishAppointmentCreated(result.getAppointmentId(), booked.get(i).getVaccineName(),
+                    result.getTime(), slot, booked.get(i).getPatientName(), result.getCaregiverName());
+        }
+    }
+
+    // the requests that run in this batch. A request whose idempotency key is stored already, or that repeats the
+    // key of an earlier request in the batch, is marked taken and does not run: Scheduler.execute answers it with
+    // what is stored under the key
+    private static List<ReservationRequest> replays(List<ReservationRequest> batch,
+                                                    Map<ReservationRequest, ReservationResult> results)
+            throws SQLException {
+        List<IdempotencyKeys.Key> keys = new ArrayList<>();
+        for (ReservationRequest request : batch) {
+            if (request.getIdempotencyKey() != null) {
+                keys.add(request.getIdempotencyKey());
+            }
+        }
+        Set<IdempotencyKeys.Key> stored = keys.isEmpty() ? Set.of() : IdempotencyKeys.getStored(keys);
+        Set<List<String>> seen = new HashSet<>();
+        List<ReservationRequest> fresh = new ArrayList<>();
+        for (ReservationRequest request : batch) {
+            IdempotencyKeys.Key key = request.getIdempotencyKey();
+            if (key != null && (stored.contains(key) || !seen.add(List.of(key.getUsername(), key.getKey())))) {
+                key.markTaken();
+                results.put(request, ReservationResult.rejected("This reservation is already being processed!"));
+            } else {
+                fresh.add(request);
+            }
+        }
+        return fresh;
+    }
+
+    // the doses of every vaccine, and into lotless how many of them belong to no lot
+    private static Map<String, Integer> getDoses(Set<String> vaccines, Map<String, Integer> lotless)
+            throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getVaccines = "SELECT v.Name, v.Doses, v.Doses - COALESCE(SUM(l.Doses), 0) AS Lotless " +
+                "FROM Vaccines v LEFT JOIN DoseLots l ON l.Vaccine_Name = v.Name WHERE v.Name IN (" +
+                String.join(", ", Collections.nCopies(vaccines.size(), "?")) + ") GROUP BY v.Name, v.Doses";
+        try {
+            PreparedStatement statement = con.prepareStatement(getVaccines);
+            int i = 1;
+            for (String vaccine : vaccines) {
+                statement.setString(i++, vaccine);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            Map<String, Integer> doses = new HashMap<>();
+            while (resultSet.next()) {
+                doses.put(resultSet.getString("Name"), resultSet.getInt("Doses"));
+                lotless.put(resultSet.getString("Name"), resultSet.getInt("Lotless"));
+            }
+            return doses;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // writes the whole allocation in one transaction, any row that changed since it was read aborts it
+    private static void commit(List<ReservationRequest> booked, Map<Availability, Integer> claimed,
+                               Map<String, Integer> used, Map<ReservationRequest, ReservationResult> results,
+                               Map<ReservationRequest, String> lots) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String addAppointment = "INSERT INTO Appointments (ID, Vaccine_Name, Time, Patient_Name, Caregiver_Name, " +
+                "Slot, Lot) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement availabilities = con.prepareStatement(Availability.updateSlotsAtVersion);
+            for (Availability availability : claimed.keySet()) {
+                availabilities.setBytes(1, availability.getSlots().toBytes());
+                availabilities.setInt(2, availability.getSlots().getFreeSlots());
+                availabilities.setDate(3, availability.getTime());
+                availabilities.setString(4, availability.getUsername());
+                availabilities.setInt(5, availability.getVersion());
+                availabilities.addBatch();
+            }
+            checkAllApplied(availabilities.executeBatch(), "availability");
+
+            // the lots first, then the totals, which must still cover what the lots hold afterwards
+            Map<String, Map<String, Integer>> lotDoses = new HashMap<>();
+            for (Map.Entry<ReservationRequest, String> entry : lots.entrySet()) {
+                lotDoses.computeIfAbsent(entry.getKey().getVaccineName(), k -> new HashMap<>())
+                        .merge(entry.getValue(), 1, Integer::sum);
+            }
+            for (Map.Entry<String, Map<String, Integer>> entry : lotDoses.entrySet()) {
+                if (!DoseLots.removeDoses(con, entry.getKey(), entry.getValue())) {
+                    throw new ConcurrentUpdateException("A dose lot changed while the batch was being allocated");
+                }
+            }
+            for (Map.Entry<String, Integer> entry : used.entrySet()) {
+                if (!DoseLots.removeFromTotal(con, entry.getKey(), entry.getValue())) {
+                    throw new ConcurrentUpdateException("A vaccine changed while the batch was being allocated");
+                }
+            }
+
+            PreparedStatement appointments = con.prepareStatement(addAppointment);
+            for (ReservationRequest request : booked) {
+                // IDs come from the shared sequence inside this transaction, a rolled back batch skips them
+                ReservationResult result = results.get(request).withAppointmentId(Appointment.nextID(con));
+                results.put(request, result);
+                if (request.getIdempotencyKey() != null) {
+                    request.getIdempotencyKey().answer(result.describe());
+                }
+                appointments.setInt(1, result.getAppointmentId());
+                appointments.setString(2, request.getVaccineName());
+                appointments.setDate(3, result.getTime());
+                appointments.setString(4, request.getPatientName());
+                appointments.setString(5, result.getCaregiverName());
+                appointments.setInt(6, result.isWholeDay() ? Appointment.WHOLE_DAY : result.getSlot());
+                appointments.setString(7, lots.get(request));
+                appointments.addBatch();
+            }
+            appointments.executeBatch();
+
+            // the idempotency keys of the booked requests, with the answers they get
+            List<IdempotencyKeys.Key> keys = new ArrayList<>();
+            for (ReservationRequest request : booked) {
+                if (request.getIdempotencyKey() != null) {
+                    keys.add(request.getIdempotencyKey());
+                }
+            }
+            if (!keys.isEmpty()) {
+                IdempotencyKeys.store(con, keys);
+            }
+
+            // the counters go into the same transaction, one upsert per caregiver day and vaccine day
+            Map<List<Object>, Integer> bookedVaccines = new HashMap<>();
+            for (ReservationRequest request : booked) {
+                ReservationResult result = results.get(request);
+                bookedVaccines.merge(List.of(result.getTime(), request.getVaccineName()), 1, Integer::sum);
+            }
+            for (Map.Entry<Availability, Integer> entry : claimed.entrySet()) {
+                Utilization.addCaregiver(con, entry.getKey().getTime(), entry.getKey().getUsername(), 0,
+                        entry.getValue());
+            }
+            for (Map.Entry<List<Object>, Integer> entry : bookedVaccines.entrySet()) {
+                Utilization.addVaccine(con, (Date) entry.getKey().get(0), (String) entry.getKey().get(1),
+                        entry.getValue(), 0);
+            }
+            for (Map.Entry<String, Integer> entry : used.entrySet()) {
+                Utilization.addVaccine(con, Utilization.today(), entry.getKey(), 0, -entry.getValue());
+            }
+            con.commit();
+        } finally {
+            // an uncommitted transaction is rolled back when the connection goes back to the pool
+            cm.closeConnection();
+            for (String vaccine : used.keySet()) {
+                ModelCache.invalidateVaccine(vaccine);
+            }
+            for (Availability availability : claimed.keySet()) {
+                ModelCache.invalidateAvailability(availability.getTime());
+            }
+        }
+    }
+
+    private static void checkAllApplied(int[] counts, String what) throws ConcurrentUpdateException {
+        for (int count : counts) {
+            if (count == 0) {
+                throw new ConcurrentUpdateException("A " + what + " changed while the batch was being allocated");
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package scheduler.batch;
+
+import scheduler.model.IdempotencyKeys;
+
+import java.sql.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class ReservationRequest {
+    private final String patientName;
+    // in order of preference
+    private final List<Date> dates;
+    private final String vaccineName;
+    // minute of the day the patient can come from, the booked slot starts at or after it
+    private final int fromMinute;
+    // stored with the booking, null if the request has no idempotency key
+    private final IdempotencyKeys.Key idempotencyKey;
+    private final CompletableFuture<ReservationResult> result = new CompletableFuture<>();
+
+    public ReservationRequest(String patientName, List<Date> dates, String vaccineName, int fromMinute,
+                              IdempotencyKeys.Key idempotencyKey) {
+        if (dates.isEmpty()) {
+            throw new IllegalArgumentException("A reservation needs at least one date!");
+        }
+        this.patientName = patientName;
+        this.dates = dates;
+        this.vaccineName = vaccineName;
+        this.fromMinute = fromMinute;
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    // Getters
+    public String getPatientName() {
+        return patientName;
+    }
+
+    public List<Date> getDates() {
+        return dates;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public int getFromMinute() {
+        return fromMinute;
+    }
+
+    public IdempotencyKeys.Key getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public CompletableFuture<ReservationResult> getResult() {
+        return result;
+    }
+}
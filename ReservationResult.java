@@ -0,0 +1,78 @@
+package scheduler.batch;
+
+import scheduler.model.SlotMap;
+
+import java.sql.Date;
+
+public class ReservationResult {
+    private final int appointmentId;
+    private final String caregiverName;
+    private final Date time;
+    // minute of the day the booked slot starts, and whether the slot is the caregiver's whole day
+    private final int slot;
+    private final boolean wholeDay;
+    // why the request could not be booked, null if it was
+    private final String message;
+
+    private ReservationResult(int appointmentId, String caregiverName, Date time, int slot, boolean wholeDay,
+                              String message) {
+        this.appointmentId = appointmentId;
+        this.caregiverName = caregiverName;
+        this.time = time;
+        this.slot = slot;
+        this.wholeDay = wholeDay;
+        this.message = message;
+    }
+
+    public static ReservationResult booked(int appointmentId, String caregiverName, Date time, int slot,
+                                           boolean wholeDay) {
+        return new ReservationResult(appointmentId, caregiverName, time, slot, wholeDay, null);
+    }
+
+    public static ReservationResult rejected(String message) {
+        return new ReservationResult(0, null, null, 0, false, message);
+    }
+
+    // the same booking under the ID its commit drew
+    public ReservationResult withAppointmentId(int appointmentId) {
+        return new ReservationResult(appointmentId, caregiverName, time, slot, wholeDay, message);
+    }
+
+    // Getters
+    public boolean isBooked() {
+        return message == null;
+    }
+
+    public int getAppointmentId() {
+        return appointmentId;
+    }
+
+    public String getCaregiverName() {
+        return caregiverName;
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public boolean isWholeDay() {
+        return wholeDay;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    // what the patient is told
+    public String describe() {
+        if (!isBooked()) {
+            return message;
+        }
+        return "Reservation " + appointmentId + " made with " + caregiverName + " on " + time +
+                (wholeDay ? "" : " at " + SlotMap.formatMinute(slot)) + "!";
+    }
+}
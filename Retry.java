@@ -0,0 +1,85 @@
+package scheduler.db;
+
+import scheduler.util.Backoff;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a database transaction again when SQL Server aborted it for reasons that go away on their own.
+ *
+ * Only errors after which the server is known to have rolled the transaction back count as transient: deadlock
+ * victim (1205), lock request timeout (1222), snapshot update conflict (3960), serialization failures (SQLState
+ * 40001), and Azure SQL turning the request away while busy (40501, 49918-49920). Running the transaction again
+ * then cannot apply it twice. A dropped connection is not retried, the commit may or may not have happened.
+ *
+ * Attempts are spaced with jittered exponential backoff, RetryAttempts (default 5) at most and never past the
+ * command's Deadline.
+ */
+public class Retry {
+
+    private static final Backoff BACKOFF = new Backoff(
+            System.getenv("RetryBaseMillis") == null ? 20 : Long.parseLong(System.getenv("RetryBaseMillis")),
+            System.getenv("RetryMaxMillis") == null ? 1000 : Long.parseLong(System.getenv("RetryMaxMillis")),
+            System.getenv("RetryAttempts") == null ? 5 : Integer.parseInt(System.getenv("RetryAttempts")));
+
+    private static final LongAdder retries = new LongAdder();
+    private static final LongAdder recovered = new LongAdder();
+    private static final LongAdder exhausted = new LongAdder();
+
+    // the transaction opens its own ConnectionManager, every attempt starts from scratch
+    public static <T> T run(AsyncQuery.Query<T> transaction) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                T result = transaction.run();
+                if (attempt > 1) {
+                    recovered.increment();
+                }
+                return result;
+            } catch (SQLException e) {
+                if (!isTransient(e)) {
+                    throw e;
+                }
+                Deadline deadline = Deadline.current();
+                if (attempt >= BACKOFF.getMaxAttempts() || (deadline != null && deadline.isExpired())) {
+                    exhausted.increment();
+                    throw e;
+                }
+                retries.increment();
+                BACKOFF.pause(attempt);
+            }
+        }
+    }
+
+    // true if the server rolled the transaction back and running it again is safe and likely to succeed
+    public static boolean isTransient(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (!(t instanceof SQLException)) {
+                continue;
+            }
+            for (SQLException s = (SQLException) t; s != null; s = s.getNextException()) {
+                if ("40001".equals(s.getSQLState())) {
+                    return true;
+                }
+                switch (s.getErrorCode()) {
+                    case 1205:
+                    case 1222:
+                    case 3960:
+                    case 40501:
+                    case 49918:
+                    case 49919:
+                    case 49920:
+                        return true;
+                    default:
+                        break;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static String stats() {
+        return "retries: " + retries.sum() + " transient failures retried, " + recovered.sum() +
+                " transactions recovered, " + exhausted.sum() + " gave up";
+    }
+}
@@ -1,31 +1,88 @@
 package scheduler;
 
+import scheduler.admission.WaitingRoom;
+import scheduler.archive.Archiver;
+import scheduler.batch.ReservationBatcher;
+import scheduler.batch.ReservationRequest;
+import scheduler.batch.ReservationResult;
+import scheduler.db.AsyncQuery;
 import scheduler.db.ConnectionManager;
+import scheduler.db.Deadline;
+import scheduler.db.Retry;
+import scheduler.db.ReplicaRouter;
+import scheduler.events.ChangeEvents;
+import scheduler.feed.ChangeFeed;
+import scheduler.geo.SiteIndex;
+import scheduler.model.Appointment;
+import scheduler.model.Availability;
 import scheduler.model.Caregiver;
+import scheduler.model.ConcurrencyControl;
+import scheduler.model.ConcurrentUpdateException;
+import scheduler.model.DoseLots;
+import scheduler.model.IdempotencyKeys;
+import scheduler.model.ModelCache;
 import scheduler.model.Patient;
+import scheduler.model.Site;
+import scheduler.model.SlotMap;
+import scheduler.model.Utilization;
 import scheduler.model.Vaccine;
+import scheduler.protocol.JsonLinesServer;
+import scheduler.reminder.ReminderService;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntFunction;
 
 public class Scheduler {
 
-    // objects to keep track of the currently logged-in user
-    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
-    private static int AppointmentID = 1;
+    // the logged-in user lives in a Session, so several sessions can drive the handlers at once
+
+    // defaults for search_caregiver_schedule ... near
+    private static final double siteRadiusKm = System.getenv("SiteRadiusKm") == null ? 25 :
+            Double.parseDouble(System.getenv("SiteRadiusKm"));
+    private static final int siteResultLimit = System.getenv("SiteResultLimit") == null ? 10 :
+            Integer.parseInt(System.getenv("SiteResultLimit"));
+
+    // the commands whose replays an idempotency key recognizes
+    private static final Set<String> IDEMPOTENT = Set.of("reserve", "add_doses", "upload_availability");
+
+    // books an appointment, WarmStart runs the same text so the server has its plan ready
+    static final String addAppointment = "INSERT INTO Appointments (ID, Vaccine_Name, Time, Patient_Name, " +
+            "Caregiver_Name, Slot, Lot) VALUES (? , ? , ? , ? , ?, ?, ?)";
+
+    public static void main(String[] args) throws Exception {
+        // machine mode: "--machine" serves JSON-lines requests on stdin/stdout, "--machine <port>" on a TCP port
+        if (args.length > 0 && args[0].equals("--machine")) {
+            // on stdin/stdout the responses own stdout, anything else printed from here on goes to stderr
+            PrintStream responses = System.out;
+            if (args.length == 1) {
+                System.setOut(System.err);
+            }
+            startBackgroundServices();
+            // sweep expired dose lots, a short CLI run leaves that to the long-running nodes
+            DoseLots.startSweep();
+            WarmStart.runIfConfigured();
+            if (args.length > 1) {
+                JsonLinesServer.serve(Integer.parseInt(args[1]));
+            } else {
+                JsonLinesServer.serve(System.in, responses);
+            }
+            return;
+        }
 
-    public static void main(String[] args) throws SQLException {
         // printing greetings text
         System.out.println();
         System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
@@ -34,17 +91,25 @@ public class Scheduler {
         System.out.println("> create_caregiver <username> <password>");
         System.out.println("> login_patient <username> <password>");
         System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");
-        System.out.println("> reserve <date> <vaccine>");
-        System.out.println("> upload_availability <date>");
+        System.out.println("> search_caregiver_schedule <date> [near <lat,lon> [radius_km]]");
+        System.out.println("> reserve <date> <vaccine> [earliest HH:MM]");
+        System.out.println("> upload_availability <date> [<HH:MM-HH:MM> <slot_minutes>]");
+        System.out.println("> add_site <name> <lat,lon>");
+        System.out.println("> set_site <name>");
         System.out.println("> cancel <appointment_id>");
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");
+        System.out.println("> add_doses <vaccine> <number> [<lot> <expiry>]");
+        System.out.println("> show_appointments [history]");
+        System.out.println("> utilization <from> <to> [caregiver]");
         System.out.println("> logout");
         System.out.println("> quit");
         System.out.println();
 
+        startBackgroundServices();
+        // prime connections, crypto and the JIT before the prompt, if configured
+        WarmStart.runIfConfigured();
+
         // read input from user
+        Session session = new Session(System.out);
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
             System.out.print("> ");
@@ -61,56 +126,168 @@ public class Scheduler {
                 System.out.println("Please try again!");
                 continue;
             }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
+            if (tokens[0].equals("quit")) {
                 System.out.println("Bye!");
                 return;
+            }
+            execute(session, tokens);
+        }
+    }
+
+    private static void startBackgroundServices() {
+        // hand change events to the configured subscribers instead of having them poll the tables
+        ChangeEvents.startSubscribers();
+
+        // remind patients of upcoming appointments
+        ReminderService.startIfConfigured();
+
+        // move past availabilities and appointments out of the hot tables in the background
+        Archiver.startIfConfigured();
+
+        // reconcile the utilization counters with the tables now and then
+        Utilization.startRebuildIfConfigured();
+
+        // drop cached rows other nodes changed, so reads can stay local
+        ChangeFeed.startIfConfigured();
+
+        // forget idempotency keys past their retention
+        IdempotencyKeys.start();
+    }
+
+    // runs a write command at most once per idempotency key of the logged-in user: a replay of the key gets the
+    // answer of the first run instead of running it again. Without a key, and for other commands, same as execute
+    public static void execute(Session session, String[] tokens, String idempotencyKey) throws SQLException {
+        String operation = tokens[0];
+        String username = session.getCurrentCaregiver() != null ? session.getCurrentCaregiver().getUsername() :
+                session.getCurrentPatient() != null ? session.getCurrentPatient().getUsername() : null;
+        if (idempotencyKey == null || username == null || !IDEMPOTENT.contains(operation)) {
+            execute(session, tokens);
+            return;
+        }
+        try {
+            IdempotencyKeys.Stored stored = IdempotencyKeys.get(username, idempotencyKey);
+            if (stored != null) {
+                replay(session, stored, operation);
+                return;
+            }
+        } catch (SQLException e) {
+            session.println("Error occurred when checking the idempotency key");
+            return;
+        }
+        // the command's write stores the key with its answer in the same transaction, see IdempotencyKeys
+        IdempotencyKeys.Key key = new IdempotencyKeys.Key(username, idempotencyKey, operation);
+        IdempotencyKeys.Key outer = IdempotencyKeys.bind(key);
+        session.startRecording();
+        String output;
+        try {
+            execute(session, tokens);
+        } catch (SQLException e) {
+            if (!key.isTaken()) {
+                throw e;
+            }
+        } finally {
+            IdempotencyKeys.bind(outer);
+            output = session.stopRecording();
+            if (!key.isTaken()) {
+                session.print(output);
+            }
+        }
+        // a concurrent run under the same key wrote first and this one was rolled back, answer what it answered
+        if (key.isTaken()) {
+            IdempotencyKeys.Stored stored = IdempotencyKeys.get(username, idempotencyKey);
+            if (stored != null) {
+                replay(session, stored, operation);
             } else {
-                System.out.println("Invalid operation name!");
+                session.print(output);
+            }
+        }
+    }
+
+    private static void replay(Session session, IdempotencyKeys.Stored stored, String operation) {
+        if (!stored.getOperation().equals(operation)) {
+            session.println("This idempotency key was already used for " + stored.getOperation() + "!");
+        } else {
+            session.print(stored.getOutput());
+        }
+    }
+
+    // run one command on behalf of a session, all of its output goes to the session
+    public static void execute(Session session, String[] tokens) throws SQLException {
+        // determine which operation to perform
+        String operation = tokens[0];
+        // fail fast while the database is known to be down, rather than one connection error per lookup
+        if (!operation.equals("logout") && ConnectionManager.getBreaker().isRejecting()) {
+            session.println("The database is unavailable right now, please try again in a moment!");
+            return;
+        }
+        // every database call of the command shares its latency budget, misses are counted per command
+        // and reads of the session see what it wrote before, wherever they are routed
+        ReplicaRouter.Writes outer = ReplicaRouter.bind(session.getWrites());
+        long start = System.nanoTime();
+        try (Deadline deadline = Deadline.start(operation)) {
+            dispatch(session, operation, tokens);
+            if (deadline.wasCut()) {
+                session.println("The command ran out of time, please try again!");
             }
+        } finally {
+            ReplicaRouter.bind(outer);
+            WarmStart.recordCommand(operation, System.nanoTime() - start);
         }
     }
 
-    private static void createPatient(String[] tokens) {
+    private static void dispatch(Session session, String operation, String[] tokens) throws SQLException {
+        if (operation.equals("create_patient")) {
+            createPatient(session, tokens);
+        } else if (operation.equals("create_caregiver")) {
+            createCaregiver(session, tokens);
+        } else if (operation.equals("login_patient")) {
+            loginPatient(session, tokens);
+        } else if (operation.equals("login_caregiver")) {
+            loginCaregiver(session, tokens);
+        } else if (operation.equals("search_caregiver_schedule")) {
+            searchCaregiverSchedule(session, tokens);
+        } else if (operation.equals("reserve")) {
+            reserve(session, tokens);
+        } else if (operation.equals("upload_availability")) {
+            uploadAvailability(session, tokens);
+        } else if (operation.equals("add_site")) {
+            addSite(session, tokens);
+        } else if (operation.equals("set_site")) {
+            setSite(session, tokens);
+        } else if (operation.equals("cancel")) {
+            cancel(session, tokens);
+        } else if (operation.equals("add_doses")) {
+            addDoses(session, tokens);
+        } else if (operation.equals("show_appointments")) {
+            showAppointments(session, tokens);
+        } else if (operation.equals("utilization")) {
+            utilization(session, tokens);
+        } else if (operation.equals("logout")) {
+            logout(session, tokens);
+        } else {
+            // keeps made-up command names out of the per-command stats
+            Deadline.current().uncount();
+            session.println("Invalid operation name!");
+        }
+    }
+
+    private static void createPatient(Session session, String[] tokens) {
         // create_patient <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         // check 2: check if the username has been taken already
         if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again!");
+            session.println("Username taken, try again!");
             return;
         }
         // check 3: check if password is strong enough
         if (!isStrongPassword(password)) {
-            System.out.println("Password is not strong enough. Include mixture of upper and lowercase letters, " +
+            session.println("Password is not strong enough. Include mixture of upper and lowercase letters, " +
                     "a number, and a special character (“!”, “@”, “#”, “?”)");
             return;
         }
@@ -118,33 +295,33 @@ public class Scheduler {
         byte[] hash = Util.generateHash(password, salt);
         // create the patient
         try {
-            currentPatient = new Patient.PatientBuilder(username, salt, hash).build();
+            session.setCurrentPatient(new Patient.PatientBuilder(username, salt, hash).build());
             // save to patient information to our database
-            currentPatient.saveToDB();
-            System.out.println(" *** Account created successfully *** ");
+            session.getCurrentPatient().saveToDB();
+            session.println(" *** Account created successfully *** ");
         } catch (SQLException e) {
-            System.out.println("Create failed");
+            session.println("Create failed");
             e.printStackTrace();
         }
     }
 
-    private static void createCaregiver(String[] tokens) {
+    private static void createCaregiver(Session session, String[] tokens) {
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         // check 2: check if the username has been taken already
         if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+            session.println("Username taken, try again!");
             return;
         }
         // check 3: check if password is strong enough
         if (!isStrongPassword(password)) {
-            System.out.println("Password is not strong enough. Include mixture of upper and lowercase letters, " +
+            session.println("Password is not strong enough. Include mixture of upper and lowercase letters, " +
                                 "a number, and a special character (“!”, “@”, “#”, “?”)");
             return;
         }
@@ -152,12 +329,12 @@ public class Scheduler {
         byte[] hash = Util.generateHash(password, salt);
         // create the caregiver
         try {
-            currentCaregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build();
+            session.setCurrentCaregiver(new Caregiver.CaregiverBuilder(username, salt, hash).build());
             // save to caregiver information to our database
-            currentCaregiver.saveToDB();
-            System.out.println(" *** Account created successfully *** ");
+            session.getCurrentCaregiver().saveToDB();
+            session.println(" *** Account created successfully *** ");
         } catch (SQLException e) {
-            System.out.println("Create failed");
+            session.println("Create failed");
             e.printStackTrace();
         }
     }
@@ -189,55 +366,52 @@ public class Scheduler {
     }
 
     private static boolean usernameExistsCaregiver(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
         String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            return ModelCache.CAREGIVER_NAMES.get(username, () -> usernameExists(selectUsername, username));
         } catch (SQLException e) {
             System.out.println("Error occurred when checking username");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
         return true;
     }
 
     private static boolean usernameExistsPatient(String username) {
+        String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
+        try {
+            return ModelCache.PATIENT_NAMES.get(username, () -> usernameExists(selectUsername, username));
+        } catch (SQLException e) {
+            System.out.println("Error occurred when checking username");
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    private static boolean usernameExists(String selectUsername, String username) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
         try {
             PreparedStatement statement = con.prepareStatement(selectUsername);
             statement.setString(1, username);
             ResultSet resultSet = statement.executeQuery();
             // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
             return resultSet.isBeforeFirst();
-        } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-            e.printStackTrace();
         } finally {
             cm.closeConnection();
         }
-        return true;
     }
 
-    private static void loginPatient(String[] tokens) {
+    private static void loginPatient(Session session, String[] tokens) {
         // login_patient <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("Already logged-in!");
+        if (session.getCurrentCaregiver() != null || session.getCurrentPatient() != null) {
+            session.println("Already logged-in!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
             return;
         }
         String username = tokens[1];
@@ -247,28 +421,28 @@ public class Scheduler {
         try {
             patient = new Patient.PatientGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Error occurred when logging in");
+            session.println("Error occurred when logging in");
             e.printStackTrace();
         }
         // check if the login was successful
         if (patient == null) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
         } else {
-            System.out.println("Patient logged in as: " + username);
-            currentPatient = patient;
+            session.println("Patient logged in as: " + username);
+            session.setCurrentPatient(patient);
         }
     }
 
-    private static void loginCaregiver(String[] tokens) {
+    private static void loginCaregiver(Session session, String[] tokens) {
         // login_caregiver <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("Already logged-in!");
+        if (session.getCurrentCaregiver() != null || session.getCurrentPatient() != null) {
+            session.println("Already logged-in!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
             return;
         }
         String username = tokens[1];
@@ -278,63 +452,125 @@ public class Scheduler {
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Error occurred when logging in");
+            session.println("Error occurred when logging in");
             e.printStackTrace();
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
         } else {
-            System.out.println("Caregiver logged in as: " + username);
-            currentCaregiver = caregiver;
+            session.println("Caregiver logged in as: " + username);
+            session.setCurrentCaregiver(caregiver);
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens) {
-        // search_caregiver_schedule <date>
+    private static void searchCaregiverSchedule(Session session, String[] tokens) {
+        // search_caregiver_schedule <date> [near <lat,lon> [radius_km]]
         // check 1: check if the current logged-in user is a caregiver or patient
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login as a caregiver or patient!");
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null) {
+            session.println("Please login as a caregiver or patient!");
+            return;
+        }
+        if (tokens.length >= 3 && tokens[2].equals("near")) {
+            searchCaregiverScheduleNear(session, tokens);
             return;
         }
         // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
             return;
         }
         String date = tokens[1];
         try {
             Date d = Date.valueOf(date);
-            getCaregiverSchedule(date, true);
-            getVaccines();
-            System.out.println("Caregiver Schedule Displayed!");
+            // the two lookups are independent, so run them side by side and print once both are back
+            CompletableFuture<ArrayList<String>> schedule = AsyncQuery.submit(() -> getCaregiverSchedule(d));
+            CompletableFuture<LinkedHashMap<String, Integer>> vaccines = AsyncQuery.submit(() -> getVaccines());
+            session.println("The available caregivers are:");
+            for (String username : AsyncQuery.await(schedule)) {
+                session.println(username);
+            }
+            for (Map.Entry<String, Integer> vaccine : AsyncQuery.await(vaccines).entrySet()) {
+                session.println("There are " + vaccine.getValue() + " doses of the " + vaccine.getKey() +
+                        " vaccine available!");
+            }
+            session.println("Caregiver Schedule Displayed!");
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date! (Format YYYY-MM-DD)");
+            session.println("Please enter a valid date! (Format YYYY-MM-DD)");
         } catch (SQLException e) {
-            System.out.println("Error occurred when searching for caregiver schedule!");
+            session.println("Error occurred when searching for caregiver schedule!");
             e.printStackTrace();
         }
     }
 
-    private static ArrayList<String> getCaregiverSchedule(String date, boolean print) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+    // the open caregivers on a date ranked by how far their site is from the given point
+    private static void searchCaregiverScheduleNear(Session session, String[] tokens) {
+        if (tokens.length != 4 && tokens.length != 5) {
+            session.println("Please try again!");
+            return;
+        }
+        String date = tokens[1];
+        double latitude;
+        double longitude;
+        double radius = siteRadiusKm;
+        Date d;
+        try {
+            d = Date.valueOf(date);
+            String[] point = tokens[3].split(",");
+            if (point.length != 2) {
+                session.println("Please enter a location as <lat,lon>!");
+                return;
+            }
+            latitude = Double.parseDouble(point[0]);
+            longitude = Double.parseDouble(point[1]);
+            if (tokens.length == 5) {
+                radius = Double.parseDouble(tokens[4]);
+            }
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid date, location and radius!");
+            return;
+        }
+        // written so NaN fails too
+        if (!(radius > 0) || !(Math.abs(latitude) <= 90) || !(Math.abs(longitude) <= 180)) {
+            session.println("Please try again!");
+            return;
+        }
+        try {
+            List<SiteIndex.Match> matches = SiteIndex.nearest(getCaregiverSchedule(d), latitude, longitude,
+                    radius, siteResultLimit);
+            if (matches.isEmpty()) {
+                session.println("There are no caregivers available within " + radius + " km on " + date + "!");
+                return;
+            }
+            session.println("The nearest available caregivers are:");
+            for (SiteIndex.Match match : matches) {
+                session.println(match.getCaregiverName() + " at " + match.getSiteName() + " (" +
+                        String.format("%.1f", match.getDistanceKm()) + " km)");
+            }
+            session.println("Caregiver Schedule Displayed!");
+        } catch (SQLException e) {
+            session.println("Error occurred when searching for caregiver schedule!");
+            e.printStackTrace();
+        }
+    }
+
+    private static ArrayList<String> getCaregiverSchedule(Date date) throws SQLException {
+        // served from the cache until a write to the date's availabilities, here or on another node, invalidates it
+        return ModelCache.OPEN_CAREGIVERS.get(date, () -> selectCaregiverSchedule(date));
+    }
+
+    private static ArrayList<String> selectCaregiverSchedule(Date date) throws SQLException {
+        ConnectionManager cm = new ConnectionManager(ConnectionManager.Route.SHARED_READ);
         Connection con = cm.createConnection();
 
-        String getCaregiver = "SELECT Username FROM Availabilities WHERE Time = ?";
+        String getCaregiver = "SELECT Username FROM Availabilities WHERE Time = ? AND FreeSlots > 0";
         try {
             PreparedStatement statement = con.prepareStatement(getCaregiver);
-            statement.setString(1, date);
+            statement.setDate(1, date);
             ResultSet resultSet = statement.executeQuery();
-            if (print) {
-                System.out.println("The available caregivers are:");
-            }
             ArrayList<String> usernames = new ArrayList<>();
             while (resultSet.next()) {
-                String username = resultSet.getString("Username");
-                usernames.add(username);
-                if (print) {
-                    System.out.println(username);
-                }
+                usernames.add(resultSet.getString("Username"));
             }
             return usernames;
         } catch (SQLException e) {
@@ -345,19 +581,24 @@ public class Scheduler {
         }
     }
 
-    private static void getVaccines() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+    private static LinkedHashMap<String, Integer> getVaccines() throws SQLException {
+        // repeated searches are answered from the cache until a dose change invalidates it
+        return ModelCache.ALL_VACCINES.get(ModelCache.ALL, () -> selectVaccines());
+    }
+
+    private static LinkedHashMap<String, Integer> selectVaccines() throws SQLException {
+        ConnectionManager cm = new ConnectionManager(ConnectionManager.Route.SHARED_READ);
         Connection con = cm.createConnection();
 
         String getVaccine = "Select Name, Doses FROM Vaccines";
         try {
             PreparedStatement statement = con.prepareStatement(getVaccine);
             ResultSet resultSet = statement.executeQuery();
+            LinkedHashMap<String, Integer> vaccines = new LinkedHashMap<>();
             while (resultSet.next()) {
-                String name = resultSet.getString("Name");
-                String doses = resultSet.getString("Doses");
-                System.out.println("There are " + doses + " doses of the " + name + " vaccine available!");
+                vaccines.put(resultSet.getString("Name"), resultSet.getInt("Doses"));
             }
+            return vaccines;
         } catch (SQLException e) {
             System.out.println(e);
             throw new SQLException();
@@ -366,48 +607,118 @@ public class Scheduler {
         }
     }
 
-    private static void reserve(String[] tokens) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        // reserve <date> <vaccine>
+    private static void reserve(Session session, String[] tokens) throws SQLException {
+        // reserve <date> <vaccine> [earliest HH:MM]
         // check 1: check if the current logged-in user is a patient
-        if (currentPatient == null) {
-            System.out.println("Please login as a patient!");
+        if (session.getCurrentPatient() == null) {
+            session.println("Please login as a patient!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Please try again!");
+        // check 2: the length for tokens need to be 3, or 4 with the earliest time that suits the patient
+        if (tokens.length != 3 && tokens.length != 4) {
+            session.println("Please try again!");
             return;
         }
         String date = tokens[1];
         String vaccine = tokens[2];
+        int fromMinute;
+        try {
+            fromMinute = tokens.length == 4 ? SlotMap.parseMinute(tokens[3]) : 0;
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid time! (Format HH:MM)");
+            return;
+        }
+
+        // in a surge, wait for a turn before touching the database
+        WaitingRoom.Ticket ticket = null;
+        if (WaitingRoom.isEnabled()) {
+            ticket = WaitingRoom.getReserve().enter(session);
+            if (ticket == null) {
+                return;
+            }
+        }
+        try {
+            if (ReservationBatcher.isEnabled()) {
+                reserveBatched(session, date, vaccine, fromMinute);
+            } else {
+                reserveNow(session, date, vaccine, fromMinute);
+            }
+        } catch (SQLException e) {
+            if (ticket != null) {
+                ticket.overloaded();
+            }
+            throw e;
+        } finally {
+            if (ticket != null) {
+                ticket.leave();
+            }
+        }
+    }
 
+    private static void reserveNow(Session session, String date, String vaccine, int fromMinute)
+            throws SQLException {
         try {
             Date d = Date.valueOf(date);
+            // the vaccine check and the caregiver lookup don't depend on each other, so start both right away
+            CompletableFuture<Boolean> vaccineExists = AsyncQuery.submit(() -> checkVaccine(session, vaccine));
+            CompletableFuture<List<Availability>> schedule =
+                    AsyncQuery.submit(() -> new Availability.AvailabilityGetter(d).get());
             // Check if vaccine exists in system
-            if (!checkVaccine(vaccine)) {
+            if (!AsyncQuery.await(vaccineExists)) {
                 return;
             }
-            ArrayList<String> caregivers = getCaregiverSchedule(date, false);
+            // take the slot first, so losing it to a concurrent reservation leaves nothing to undo
+            Availability availability = removeAvailability(d, AsyncQuery.await(schedule), fromMinute);
             // Check if caregiver is available
-            if (caregivers.size() == 0) {
-                System.out.print("There are no caregivers available for your selected date!");
+            if (availability == null) {
+                session.print("There are no caregivers available for your selected date!");
                 return;
             }
-            String caregiver = caregivers.get(0);
-            uploadAppointment(AppointmentID, vaccine, d, currentPatient.getUsername(), caregiver);
-            removeAvailability(caregiver, d);
-            removeDoses(vaccine);
-            System.out.println("Reservation " + AppointmentID + " made with " + caregiver + "!");
-            AppointmentID++;
+            String caregiver = availability.getUsername();
+            int minute = availability.getClaimedMinute();
+            int slot = availability.isWholeDay() ? Appointment.WHOLE_DAY : minute;
+            // the ID comes from the database in the booking's transaction, which stores the reply with the key
+            IntFunction<String> reply = appointmentID -> availability.isWholeDay() ?
+                    "Reservation " + appointmentID + " made with " + caregiver + "!" :
+                    "Reservation " + appointmentID + " made with " + caregiver + " at " +
+                            SlotMap.formatMinute(minute) + "!";
+            int appointmentID = 0;
+            try {
+                appointmentID = uploadAppointment(vaccine, d, slot, session.getCurrentPatient().getUsername(),
+                        caregiver, reply);
+            } finally {
+                // no dose was left for the date, or the insert failed: the caregiver gets the slot back
+                if (appointmentID == 0) {
+                    Availability.release(caregiver, d, minute);
+                }
+            }
+            session.println(appointmentID != 0 ? reply.apply(appointmentID) :
+                    "There are no doses of this vaccine that are still valid on " + d + "!");
 
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid reservation date! (Format YYYY-MM-DD)");
+            session.println("Please enter a valid reservation date! (Format YYYY-MM-DD)");
+        }
+    }
+
+    // batch mode: the date may be a comma separated list of dates in order of preference
+    private static void reserveBatched(Session session, String date, String vaccine, int fromMinute)
+            throws SQLException {
+        List<Date> dates = new ArrayList<>();
+        try {
+            for (String preferred : date.split(",")) {
+                dates.add(Date.valueOf(preferred));
+            }
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid reservation date! (Format YYYY-MM-DD)");
+            return;
         }
+        // the batch commit stores the idempotency key, if there is one, with the booking
+        ReservationResult result = AsyncQuery.await(ReservationBatcher.submit(new ReservationRequest(
+                session.getCurrentPatient().getUsername(), dates, vaccine, fromMinute, IdempotencyKeys.current())));
+        session.println(result.describe());
     }
 
-    private static boolean checkVaccine(String vaccine) throws SQLException {
+    private static boolean checkVaccine(Session session, String vaccine) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
@@ -421,7 +732,7 @@ public class Scheduler {
             while (resultSet.next()) {
                 int doses = resultSet.getInt("Doses");
                 if (doses == 0) {
-                    System.out.println("There are 0 doses of this vaccine available!");
+                    session.println("There are 0 doses of this vaccine available!");
                     return false;
                 }
                 count++;
@@ -429,7 +740,7 @@ public class Scheduler {
             if (count > 0) {
                 return true;
             } else {
-                System.out.println("Please enter a valid vaccine!");
+                session.println("Please enter a valid vaccine!");
                 return false;
             }
         } catch (SQLException e) {
@@ -439,171 +750,348 @@ public class Scheduler {
         }
     }
 
-    private static void removeAvailability(String caregiver, Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    // books the first free slot at or after fromMinute with one of the given availabilities on the date, returns
+    // null once none are left
+    private static Availability removeAvailability(Date d, List<Availability> candidates, int fromMinute)
+            throws SQLException {
+        candidates.removeIf(candidate -> candidate.firstFree(fromMinute) < 0);
+        if (ConcurrencyControl.getMode() == ConcurrencyControl.Mode.PESSIMISTIC) {
+            return candidates.isEmpty() ? null : Availability.claimLocked(d, fromMinute);
+        }
+        for (int attempt = 1; ; attempt++) {
+            if (candidates.isEmpty()) {
+                return null;
+            }
+            // start at a random caregiver so concurrent reservations for the same date don't all race for the first
+            int offset = ThreadLocalRandom.current().nextInt(candidates.size());
+            for (int i = 0; i < candidates.size(); i++) {
+                Availability candidate = candidates.get((offset + i) % candidates.size());
+                if (candidate.claim(candidate.firstFree(fromMinute))) {
+                    return candidate;
+                }
+            }
+            ConcurrencyControl.recordConflict();
+            if (attempt >= ConcurrencyControl.BACKOFF.getMaxAttempts()) {
+                throw new ConcurrentUpdateException("Too many concurrent reservations on " + d);
+            }
+            ConcurrencyControl.BACKOFF.pause(attempt);
+            candidates = new Availability.AvailabilityGetter(d).get();
+            candidates.removeIf(candidate -> candidate.firstFree(fromMinute) < 0);
+        }
+    }
 
-        String getVaccine = "DELETE FROM Availabilities WHERE Username = ? AND Time = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(getVaccine);
-            statement.setString(1, caregiver);
-            statement.setDate(2, d);
-            statement.execute();
-        } catch (SQLException e) {
-            System.out.println(e);
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+    // books the appointment and takes its dose in one transaction, returns the appointment ID, or 0 if no dose valid
+    // on the date is left. reply is what a keyed command answers for the ID
+    private static int uploadAppointment(String Vaccine_Name, Date d, int Slot, String Patient_Name,
+                                         String Caregiver_Name, IntFunction<String> reply) throws SQLException {
+        // a deadlock victim was rolled back with its ID, the insert runs again under a new one
+        int ID = Retry.run(() -> insertAppointment(Vaccine_Name, d, Slot, Patient_Name, Caregiver_Name, reply));
+        if (ID == 0) {
+            return 0;
         }
+        // the slot counts as taken only once the booking has committed, a claim that is handed back publishes nothing
+        ChangeEvents.RING.publishAvailabilityRemoved(Caregiver_Name, d, Slot);
+        ChangeEvents.RING.publishAppointmentCreated(ID, Vaccine_Name, d, Slot, Patient_Name, Caregiver_Name);
+        return ID;
     }
 
-    private static void uploadAppointment(int ID, String Vaccine_Name, Date d, String Patient_Name,
-                                          String Caregiver_Name) throws SQLException {
+    private static int insertAppointment(String Vaccine_Name, Date d, int Slot, String Patient_Name,
+                                         String Caregiver_Name, IntFunction<String> reply) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addAppointment = "INSERT INTO Appointments VALUES (? , ? , ? , ? , ?)";
+        boolean committed = false;
         try {
+            con.setAutoCommit(false);
+            // the dose comes from the earliest-expiring lot still valid on the date, or else from the doses without
+            // a lot
+            String lot = DoseLots.take(con, Vaccine_Name, d);
+            if (!DoseLots.removeFromTotal(con, Vaccine_Name, 1)) {
+                return 0;
+            }
+            int ID = Appointment.nextID(con);
             PreparedStatement statement = con.prepareStatement(addAppointment);
             statement.setInt(1, ID);
             statement.setString(2, Vaccine_Name);
             statement.setDate(3, d);
             statement.setString(4, Patient_Name);
             statement.setString(5, Caregiver_Name);
+            statement.setInt(6, Slot);
+            statement.setString(7, lot);
             statement.executeUpdate();
-        } catch (SQLException e) {
-            System.out.println(e);
-            throw new SQLException();
+            Utilization.addVaccine(con, d, Vaccine_Name, 1, 0);
+            Utilization.addVaccine(con, Utilization.today(), Vaccine_Name, 0, -1);
+            IdempotencyKeys.answer(reply.apply(ID));
+            IdempotencyKeys.store(con);
+            con.commit();
+            committed = true;
+            return ID;
         } finally {
+            // an uncommitted transaction is rolled back when the connection goes back to the pool
             cm.closeConnection();
+            ModelCache.invalidateVaccine(Vaccine_Name);
+            if (!committed) {
+                // the in-memory lot counts may be one short now, read them again
+                DoseLots.invalidate(Vaccine_Name);
+            }
         }
     }
-    private static void uploadAvailability(String[] tokens) {
-        // upload_availability <date>
+
+    private static void uploadAvailability(Session session, String[] tokens) {
+        // upload_availability <date> [<HH:MM-HH:MM> <slot_minutes>]
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        // check 2: the length for tokens need to be 2 for a whole day, or 4 with a window and slot length
+        if (tokens.length != 2 && tokens.length != 4) {
+            session.println("Please try again!");
             return;
         }
         String date = tokens[1];
         try {
             Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            if (tokens.length == 2) {
+                IdempotencyKeys.answer("Availability uploaded!");
+                session.getCurrentCaregiver().uploadAvailability(d);
+                session.println("Availability uploaded!");
+                return;
+            }
+            String[] window = tokens[2].split("-");
+            if (window.length != 2) {
+                session.println("Please enter a valid time window! (Format HH:MM-HH:MM)");
+                return;
+            }
+            SlotMap slots = new SlotMap(SlotMap.parseMinute(window[0]), SlotMap.parseMinute(window[1]),
+                    Integer.parseInt(tokens[3]));
+            IdempotencyKeys.answer("Availability uploaded with " + slots.getSlotCount() + " slots!");
+            session.getCurrentCaregiver().uploadAvailability(d, slots);
+            session.println("Availability uploaded with " + slots.getSlotCount() + " slots!");
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            session.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability. Date may already be uploaded.");
+            session.println("Error occurred when uploading availability. Date may already be uploaded.");
            // e.printStackTrace();
         }
     }
 
-    private static void cancel(String[] tokens) {
-        // TODO: Extra credit
-    }
-
-    private static void addDoses(String[] tokens) {
-        // add_doses <vaccine> <number>
+    private static void addSite(Session session, String[] tokens) {
+        // add_site <name> <lat,lon>
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
+            return;
+        }
+        String name = tokens[1];
+        Site site;
+        try {
+            String[] point = tokens[2].split(",");
+            if (point.length != 2) {
+                session.println("Please enter a location as <lat,lon>!");
+                return;
+            }
+            site = new Site.SiteBuilder(name, Double.parseDouble(point[0]), Double.parseDouble(point[1])).build();
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid location!");
+            return;
+        }
+        try {
+            site.saveToDB();
+            SiteIndex.invalidate();
+            session.println("Site " + name + " added!");
+        } catch (SQLException e) {
+            session.println("Error occurred when adding site. Name may already be taken.");
+        }
+    }
+
+    private static void setSite(Session session, String[] tokens) {
+        // set_site <name>
+        // check 1: check if the current logged-in user is a caregiver
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
+        if (tokens.length != 2) {
+            session.println("Please try again!");
+            return;
+        }
+        try {
+            session.getCurrentCaregiver().assignSite(tokens[1]);
+            SiteIndex.invalidate();
+            session.println("Site set to " + tokens[1] + "!");
+        } catch (SQLException e) {
+            session.println("Error occurred when setting site. Site may not exist.");
+        }
+    }
+
+    private static void cancel(Session session, String[] tokens) {
+        // cancel <appointment_id>
+        // check 1: check if the current logged-in user is a caregiver or patient
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null) {
+            session.println("Please login as a caregiver or patient!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
+        if (tokens.length != 2) {
+            session.println("Please try again!");
+            return;
+        }
+        int appointmentID;
+        try {
+            appointmentID = Integer.parseInt(tokens[1]);
+        } catch (NumberFormatException e) {
+            session.println("Please enter a valid appointment ID!");
+            return;
+        }
+        String username = session.getCurrentCaregiver() != null ? session.getCurrentCaregiver().getUsername() :
+                session.getCurrentPatient().getUsername();
+        try {
+            // check 3: only the patient or caregiver of the appointment may cancel it. The slot and the dose go
+            // back in the transaction that deletes the appointment
+            Appointment appointment = Appointment.cancel(appointmentID, username);
+            if (appointment == null) {
+                session.println("Appointment " + appointmentID + " not found!");
+                return;
+            }
+            ChangeEvents.RING.publishAppointmentCancelled(appointmentID, appointment.getVaccineName(),
+                    appointment.getTime(), appointment.getSlot(), appointment.getPatientName(),
+                    appointment.getCaregiverName());
+            session.println("Appointment " + appointmentID + " cancelled!");
+        } catch (SQLException e) {
+            session.println("Error occurred when cancelling appointment");
+            e.printStackTrace();
+        }
+    }
+
+    private static void addDoses(Session session, String[] tokens) {
+        // add_doses <vaccine> <number> [<lot> <expiry>]
+        // check 1: check if the current logged-in user is a caregiver
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be 3, or 5 with the lot the doses come from and its expiry date
+        if (tokens.length != 3 && tokens.length != 5) {
+            session.println("Please try again!");
             return;
         }
         String vaccineName = tokens[1];
         int doses = Integer.parseInt(tokens[2]);
+        String lot = null;
+        Date expiry = null;
+        if (tokens.length == 5) {
+            lot = tokens[3];
+            try {
+                expiry = Date.valueOf(tokens[4]);
+            } catch (IllegalArgumentException e) {
+                session.println("Please enter a valid expiry date! (Format YYYY-MM-DD)");
+                return;
+            }
+            // check 3: the lot must still be usable, and a lot number keeps the expiry it was first added with
+            try {
+                if (expiry.before(Utilization.today())) {
+                    session.println("Lot " + lot + " has already expired!");
+                    return;
+                }
+                Date known = DoseLots.getExpiry(vaccineName, lot);
+                if (known != null && !known.equals(expiry)) {
+                    session.println("Lot " + lot + " expires on " + known + "!");
+                    return;
+                }
+            } catch (SQLException e) {
+                session.println("Error occurred when adding doses");
+                e.printStackTrace();
+                return;
+            }
+        }
         Vaccine vaccine = null;
         try {
             vaccine = new Vaccine.VaccineGetter(vaccineName).get();
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
+            session.println("Error occurred when adding doses");
             e.printStackTrace();
+            return;
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
+        // the lot is written in the same transaction as the total, and so is the idempotency key if there is one
+        IdempotencyKeys.answer("Doses updated!");
+        // check 4: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
         //          table
         if (vaccine == null) {
             try {
                 vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
-                vaccine.saveToDB();
+                vaccine.saveToDB(lot, expiry);
+                ChangeEvents.RING.publishDosesAdded(vaccineName, doses);
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+                session.println("Error occurred when adding doses");
                 e.printStackTrace();
+                return;
             }
         } else {
             // if the vaccine is not null, meaning that the vaccine already exists in our table
             try {
-                vaccine.increaseAvailableDoses(doses);
+                vaccine.increaseAvailableDoses(doses, lot, expiry);
+                ChangeEvents.RING.publishDosesAdded(vaccineName, doses);
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+                session.println("Error occurred when adding doses");
                 e.printStackTrace();
+                return;
             }
         }
-        System.out.println("Doses updated!");
-    }
-
-    private static void removeDoses(String vaccineName) {
-        // remove_doses
-        Vaccine vaccine = null;
-        try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
-        } catch (SQLException e) {
-            System.out.println("Error occurred when removing doses");
-            e.printStackTrace();
-        }
-        try {
-            vaccine.decreaseAvailableDoses(1);
-        } catch (SQLException e) {
-            System.out.println("Error occurred when decreasing doses");
-            e.printStackTrace();
-        }
+        session.println("Doses updated!");
     }
 
-    private static void showAppointments(String[] tokens)  throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        // show_appointments
+    private static void showAppointments(Session session, String[] tokens) throws SQLException {
+        // show_appointments [history]
         // check 1: check if the current logged-in user is a caregiver or patient
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login as a caregiver or patient!");
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null) {
+            session.println("Please login as a caregiver or patient!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 1) {
-            System.out.println("Please try again!");
+        // check 2: the length for tokens need to be 1, or 2 when asking for archived appointments as well
+        if (tokens.length > 2 || (tokens.length == 2 && !tokens[1].equals("history"))) {
+            session.println("Please try again!");
             return;
         }
-        if (currentCaregiver != null) {
-            getAppointmentCaregiver();
+        boolean includeHistory = tokens.length == 2;
+        if (session.getCurrentCaregiver() != null) {
+            getAppointmentCaregiver(session, includeHistory);
         } else {
-            getAppointmentPatient();
+            getAppointmentPatient(session, includeHistory);
         }
     }
 
-    private static void getAppointmentCaregiver() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+    private static void getAppointmentCaregiver(Session session, boolean includeHistory) throws SQLException {
+        ConnectionManager cm = new ConnectionManager(ConnectionManager.Route.SESSION_READ);
         Connection con = cm.createConnection();
 
-        String getAppointment = "SELECT ID, Vaccine_Name, Time, Patient_Name FROM Appointments WHERE Caregiver_Name = ?";
+        String getAppointment = "SELECT ID, Vaccine_Name, Time, Slot, Patient_Name FROM Appointments " +
+                "WHERE Caregiver_Name = ?";
+        // archived appointments are only read when asked for, so the common case stays on the hot table
+        if (includeHistory) {
+            getAppointment += " UNION ALL SELECT ID, Vaccine_Name, Time, Slot, Patient_Name FROM AppointmentsHistory" +
+                    " WHERE Caregiver_Name = ?";
+        }
         try {
             PreparedStatement statement = con.prepareStatement(getAppointment);
-            statement.setString(1, currentCaregiver.getUsername());
+            statement.setString(1, session.getCurrentCaregiver().getUsername());
+            if (includeHistory) {
+                statement.setString(2, session.getCurrentCaregiver().getUsername());
+            }
             ResultSet resultSet = statement.executeQuery();
             while (resultSet.next()) {
                 String ID = resultSet.getString("ID");
                 String Vaccine_Name = resultSet.getString("Vaccine_Name");
                 Date Time = resultSet.getDate("Time");
                 String Patient_Name = resultSet.getString("Patient_Name");
-                System.out.println(Patient_Name + " is scheduled on " + Time + " to receive a " + Vaccine_Name +
-                                    " vaccine as per Appointment #" + ID + ".");
+                session.println(Patient_Name + " is scheduled on " + Time + atSlot(resultSet.getInt("Slot")) +
+                        " to receive a " + Vaccine_Name + " vaccine as per Appointment #" + ID + ".");
             }
         } catch (SQLException e) {
             System.out.println(e);
@@ -613,22 +1101,30 @@ public class Scheduler {
         }
     }
 
-    private static void getAppointmentPatient() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+    private static void getAppointmentPatient(Session session, boolean includeHistory) throws SQLException {
+        ConnectionManager cm = new ConnectionManager(ConnectionManager.Route.SESSION_READ);
         Connection con = cm.createConnection();
 
-        String getAppointment = "SELECT ID, Vaccine_Name, Time, Caregiver_Name FROM Appointments WHERE Patient_Name = ?";
+        String getAppointment = "SELECT ID, Vaccine_Name, Time, Slot, Caregiver_Name FROM Appointments " +
+                "WHERE Patient_Name = ?";
+        if (includeHistory) {
+            getAppointment += " UNION ALL SELECT ID, Vaccine_Name, Time, Slot, Caregiver_Name" +
+                    " FROM AppointmentsHistory WHERE Patient_Name = ?";
+        }
         try {
             PreparedStatement statement = con.prepareStatement(getAppointment);
-            statement.setString(1, currentPatient.getUsername());
+            statement.setString(1, session.getCurrentPatient().getUsername());
+            if (includeHistory) {
+                statement.setString(2, session.getCurrentPatient().getUsername());
+            }
             ResultSet resultSet = statement.executeQuery();
             while (resultSet.next()) {
                 String ID = resultSet.getString("ID");
                 String Vaccine_Name = resultSet.getString("Vaccine_Name");
                 Date Time = resultSet.getDate("Time");
                 String Caregiver_Name = resultSet.getString("Caregiver_Name");
-                System.out.println("You are scheduled on " + Time + " to receive a " + Vaccine_Name +
-                        " vaccine as per Appointment #" + ID + " from " + Caregiver_Name + ".");
+                session.println("You are scheduled on " + Time + atSlot(resultSet.getInt("Slot")) + " to receive a " +
+                        Vaccine_Name + " vaccine as per Appointment #" + ID + " from " + Caregiver_Name + ".");
             }
         } catch (SQLException e) {
             System.out.println(e);
@@ -638,23 +1134,123 @@ public class Scheduler {
         }
     }
 
-    private static void logout(String[] tokens) {
+    private static void utilization(Session session, String[] tokens) {
+        // utilization <from> <to> [caregiver]
+        // check 1: check if the current logged-in user is a caregiver
+        if (session.getCurrentCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be 3, or 4 to look at a single caregiver
+        if (tokens.length != 3 && tokens.length != 4) {
+            session.println("Please try again!");
+            return;
+        }
+        Date from;
+        Date to;
+        try {
+            from = Date.valueOf(tokens[1]);
+            to = Date.valueOf(tokens[2]);
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter valid dates! (Format YYYY-MM-DD)");
+            return;
+        }
+        String caregiver = tokens.length == 4 ? tokens[3] : null;
+        try {
+            // both read a few rows per day from the counters, never the Appointments or Availabilities tables
+            CompletableFuture<ArrayList<String>> days =
+                    AsyncQuery.submit(() -> getDayUtilization(from, to, caregiver));
+            CompletableFuture<ArrayList<String>> vaccines = AsyncQuery.submit(() -> getVaccineUtilization(from, to));
+            session.println(caregiver == null ? "Slots booked per day:" :
+                    "Slots booked per day for " + caregiver + ":");
+            for (String line : AsyncQuery.await(days)) {
+                session.println(line);
+            }
+            session.println("Vaccines:");
+            for (String line : AsyncQuery.await(vaccines)) {
+                session.println(line);
+            }
+        } catch (SQLException e) {
+            session.println("Error occurred when reading utilization!");
+            e.printStackTrace();
+        }
+    }
+
+    private static ArrayList<String> getDayUtilization(Date from, Date to, String caregiver) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getDays = caregiver == null ?
+                "SELECT Day, OfferedSlots, BookedSlots FROM DayUtilization WHERE Day >= ? AND Day <= ? ORDER BY Day" :
+                "SELECT Day, OfferedSlots, BookedSlots FROM CaregiverUtilization WHERE Day >= ? AND Day <= ? " +
+                        "AND Caregiver_Name = ? ORDER BY Day";
+        try {
+            PreparedStatement statement = con.prepareStatement(getDays);
+            statement.setDate(1, from);
+            statement.setDate(2, to);
+            if (caregiver != null) {
+                statement.setString(3, caregiver);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            ArrayList<String> lines = new ArrayList<>();
+            while (resultSet.next()) {
+                int offered = resultSet.getInt("OfferedSlots");
+                int booked = resultSet.getInt("BookedSlots");
+                lines.add(resultSet.getDate("Day") + ": " + booked + " of " + offered + " slots booked" +
+                        (offered == 0 ? "" : String.format(" (%.1f%%)", 100.0 * booked / offered)));
+            }
+            return lines;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static ArrayList<String> getVaccineUtilization(Date from, Date to) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getVaccines = "SELECT v.Name, v.Doses, COALESCE(SUM(u.Booked), 0) AS Booked, " +
+                "COALESCE(SUM(u.DoseChange), 0) AS DoseChange FROM Vaccines v LEFT JOIN VaccineUtilization u " +
+                "ON u.Vaccine_Name = v.Name AND u.Day >= ? AND u.Day <= ? GROUP BY v.Name, v.Doses ORDER BY v.Name";
+        try {
+            PreparedStatement statement = con.prepareStatement(getVaccines);
+            statement.setDate(1, from);
+            statement.setDate(2, to);
+            ResultSet resultSet = statement.executeQuery();
+            ArrayList<String> lines = new ArrayList<>();
+            while (resultSet.next()) {
+                lines.add(resultSet.getString("Name") + ": " + resultSet.getInt("Booked") + " booked, " +
+                        String.format("%+d", resultSet.getInt("DoseChange")) + " doses changed, " +
+                        resultSet.getInt("Doses") + " doses left");
+            }
+            return lines;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // whole-day appointments show no time
+    private static String atSlot(int slot) {
+        return slot == Appointment.WHOLE_DAY ? "" : " at " + SlotMap.formatMinute(slot);
+    }
+
+    private static void logout(Session session, String[] tokens) {
         // logout
         //check 1: check if the user is logged in
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("User is not logged in!");
+        if (session.getCurrentCaregiver() == null && session.getCurrentPatient() == null) {
+            session.println("User is not logged in!");
             return;
         }
         // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
         if (tokens.length != 1) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
             return;
         }
-        if (currentCaregiver != null) {
-            currentCaregiver = null;
+        if (session.getCurrentCaregiver() != null) {
+            session.setCurrentCaregiver(null);
         } else {
-            currentPatient = null;
+            session.setCurrentPatient(null);
         }
-        System.out.println("You have been logged out");
+        session.println("You have been logged out");
     }
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+package scheduler;
+
+import scheduler.db.ReplicaRouter;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+
+import java.io.PrintStream;
+
+public class Session {
+
+    // objects to keep track of the currently logged-in user
+    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
+    //       since only one user can be logged-in at a time
+    private Caregiver currentCaregiver = null;
+    private Patient currentPatient = null;
+
+    // where the command handlers write their replies for this session
+    private final PrintStream out;
+    // when the session last wrote, its reads wait for the replica to have that write
+    private final ReplicaRouter.Writes writes;
+    // what the session is told while a keyed command runs, held back until it is known whether the command ran
+    // or replays an earlier run, see Scheduler.execute
+    private StringBuilder recording = null;
+
+    public Session(PrintStream out) {
+        this.out = out;
+        this.writes = new ReplicaRouter.Writes();
+    }
+
+    // the same logged-in user replying to a different stream, its reads still see what the user wrote
+    public Session(Session user, PrintStream out) {
+        this.out = out;
+        this.writes = user.writes;
+        this.currentCaregiver = user.currentCaregiver;
+        this.currentPatient = user.currentPatient;
+    }
+
+    public Caregiver getCurrentCaregiver() {
+        return currentCaregiver;
+    }
+
+    public void setCurrentCaregiver(Caregiver currentCaregiver) {
+        this.currentCaregiver = currentCaregiver;
+    }
+
+    public Patient getCurrentPatient() {
+        return currentPatient;
+    }
+
+    public void setCurrentPatient(Patient currentPatient) {
+        this.currentPatient = currentPatient;
+    }
+
+    public ReplicaRouter.Writes getWrites() {
+        return writes;
+    }
+
+    public void print(String s) {
+        if (recording != null) {
+            recording.append(s);
+        } else {
+            out.print(s);
+        }
+    }
+
+    public void println(String s) {
+        if (recording != null) {
+            recording.append(s).append('\n');
+        } else {
+            out.println(s);
+        }
+    }
+
+    public void startRecording() {
+        recording = new StringBuilder();
+    }
+
+    // what was printed since startRecording, not yet written out
+    public String stopRecording() {
+        String recorded = recording.toString();
+        recording = null;
+        return recorded;
+    }
+}
@@ -0,0 +1,70 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+public class Site {
+    private final String name;
+    // degrees, WGS84
+    private final double latitude;
+    private final double longitude;
+
+    private Site(SiteBuilder builder) {
+        this.name = builder.name;
+        this.latitude = builder.latitude;
+        this.longitude = builder.longitude;
+    }
+
+    // Getters
+    public String getName() {
+        return name;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public void saveToDB() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String addSite = "INSERT INTO Sites (Name, Latitude, Longitude) VALUES (?, ?, ?)";
+        try {
+            PreparedStatement statement = con.prepareStatement(addSite);
+            statement.setString(1, this.name);
+            statement.setDouble(2, this.latitude);
+            statement.setDouble(3, this.longitude);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLException();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public static class SiteBuilder {
+        private final String name;
+        private final double latitude;
+        private final double longitude;
+
+        public SiteBuilder(String name, double latitude, double longitude) {
+            if (latitude < -90 || latitude > 90 || longitude < -180 || longitude > 180) {
+                throw new IllegalArgumentException("Coordinates out of range!");
+            }
+            this.name = name;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        public Site build() {
+            return new Site(this);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package scheduler.geo;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// in-memory k-d tree over the clinic sites plus the caregiver -> site mapping. Sites change rarely, so the whole
+// index is rebuilt from the database when it gets old or after a site change, and searches never touch the database
+public class SiteIndex {
+
+    private static final long ttlNanos = (System.getenv("SiteIndexTtlSeconds") == null ? 300 :
+            Long.parseLong(System.getenv("SiteIndexTtlSeconds"))) * 1_000_000_000L;
+
+    // one open caregiver near the search point
+    public static class Match {
+        private final String caregiverName;
+        private final String siteName;
+        private final double distanceKm;
+
+        private Match(String caregiverName, String siteName, double distanceKm) {
+            this.caregiverName = caregiverName;
+            this.siteName = siteName;
+            this.distanceKm = distanceKm;
+        }
+
+        // Getters
+        public String getCaregiverName() {
+            return caregiverName;
+        }
+
+        public String getSiteName() {
+            return siteName;
+        }
+
+        public double getDistanceKm() {
+            return distanceKm;
+        }
+    }
+
+    // immutable, replaced as a whole on rebuild
+    private static class Snapshot {
+        private final String[] names;
+        private final double[] latitudes;
+        private final double[] longitudes;
+        private final KdTree tree;
+        private final Map<String, Integer> caregiverSites;
+        private final long loadedAt = System.nanoTime();
+
+        private Snapshot(String[] names, double[] latitudes, double[] longitudes, Map<String, Integer> caregiverSites) {
+            this.names = names;
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+            this.tree = new KdTree(latitudes, longitudes);
+            this.caregiverSites = caregiverSites;
+        }
+    }
+
+    private static volatile Snapshot snapshot = null;
+
+    // called after a site is added or a caregiver moves, the next search rebuilds
+    public static void invalidate() {
+        snapshot = null;
+    }
+
+    /**
+     * The open caregivers within radiusKm of the given point, nearest first, at most limit of them. openCaregivers
+     * are the caregivers with an availability on the date being searched; caregivers without a site never match.
+     */
+    public static List<Match> nearest(Collection<String> openCaregivers, double latitude, double longitude,
+                                      double radiusKm, int limit) throws SQLException {
+        Snapshot current = getSnapshot();
+        // join the day's availabilities to their sites first, so the tree search only has to check a flag per site
+        List<List<String>> open = new ArrayList<>(current.names.length);
+        for (int i = 0; i < current.names.length; i++) {
+            open.add(null);
+        }
+        for (String caregiver : openCaregivers) {
+            Integer site = current.caregiverSites.get(caregiver);
+            if (site != null) {
+                if (open.get(site) == null) {
+                    open.set(site, new ArrayList<>(2));
+                }
+                open.get(site).add(caregiver);
+            }
+        }
+        List<Match> matches = new ArrayList<>();
+        current.tree.within(latitude, longitude, radiusKm, site -> {
+            List<String> caregivers = open.get(site);
+            if (caregivers != null) {
+                double distance = KdTree.distanceKm(latitude, longitude, current.latitudes[site],
+                        current.longitudes[site]);
+                for (String caregiver : caregivers) {
+                    matches.add(new Match(caregiver, current.names[site], distance));
+                }
+            }
+        });
+        matches.sort((a, b) -> Double.compare(a.distanceKm, b.distanceKm));
+        return matches.size() > limit ? matches.subList(0, limit) : matches;
+    }
+
+    private static Snapshot getSnapshot() throws SQLException {
+        Snapshot current = snapshot;
+        if (current == null || System.nanoTime() - current.loadedAt > ttlNanos) {
+            synchronized (SiteIndex.class) {
+                current = snapshot;
+                if (current == null || System.nanoTime() - current.loadedAt > ttlNanos) {
+                    current = load();
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static Snapshot load() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getSites = "SELECT Name, Latitude, Longitude FROM Sites";
+        String getCaregivers = "SELECT Username, Site FROM Caregivers WHERE Site IS NOT NULL";
+        try {
+            ResultSet resultSet = con.prepareStatement(getSites).executeQuery();
+            List<String> names = new ArrayList<>();
+            List<double[]> coordinates = new ArrayList<>();
+            Map<String, Integer> positions = new HashMap<>();
+            while (resultSet.next()) {
+                positions.put(resultSet.getString("Name"), names.size());
+                names.add(resultSet.getString("Name"));
+                coordinates.add(new double[]{resultSet.getDouble("Latitude"), resultSet.getDouble("Longitude")});
+            }
+            double[] latitudes = new double[names.size()];
+            double[] longitudes = new double[names.size()];
+            for (int i = 0; i < names.size(); i++) {
+                latitudes[i] = coordinates.get(i)[0];
+                longitudes[i] = coordinates.get(i)[1];
+            }
+
+            PreparedStatement statement = con.prepareStatement(getCaregivers);
+            resultSet = statement.executeQuery();
+            Map<String, Integer> caregiverSites = new HashMap<>();
+            while (resultSet.next()) {
+                Integer site = positions.get(resultSet.getString("Site"));
+                if (site != null) {
+                    caregiverSites.put(resultSet.getString("Username"), site);
+                }
+            }
+            return new Snapshot(names.toArray(new String[0]), latitudes, longitudes, caregiverSites);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package scheduler.model;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+/**
+ * The slots of one caregiver's working window on one day, as a bitmap with one bit per slot (set = booked).
+ *
+ * A second word keeps one bit per bitmap word that still has a free slot, so finding the first free slot from any
+ * point is two numberOfTrailingZeros calls instead of a scan, and booking, releasing and conflict checks on a single
+ * slot are constant time. A day has at most 1440 one-minute slots, 23 words, which the summary word covers.
+ */
+public class SlotMap {
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    private final int startMinute;
+    private final int endMinute;
+    private final int slotMinutes;
+    private final int slotCount;
+    // slots past slotCount in the last word are permanently marked booked, so ~word only ever shows real slots
+    private final long[] words;
+    private long summary;
+    private int freeSlots;
+
+    public SlotMap(int startMinute, int endMinute, int slotMinutes) {
+        if (startMinute < 0 || endMinute > MINUTES_PER_DAY || slotMinutes <= 0 ||
+                endMinute - startMinute < slotMinutes) {
+            throw new IllegalArgumentException("Invalid slot window!");
+        }
+        this.startMinute = startMinute;
+        this.endMinute = endMinute;
+        this.slotMinutes = slotMinutes;
+        this.slotCount = (endMinute - startMinute) / slotMinutes;
+        this.words = new long[(slotCount + 63) >>> 6];
+        int tail = slotCount & 63;
+        if (tail != 0) {
+            words[words.length - 1] = -1L << tail;
+        }
+        this.summary = words.length == 64 ? -1L : (1L << words.length) - 1;
+        this.freeSlots = slotCount;
+    }
+
+    // the Booked column: slot bits, low bit first, trailing zero bytes dropped; null or empty means nothing booked
+    public static SlotMap fromBytes(int startMinute, int endMinute, int slotMinutes, byte[] booked) {
+        SlotMap slots = new SlotMap(startMinute, endMinute, slotMinutes);
+        if (booked != null) {
+            for (int i = 0; i < booked.length && i < slots.slotCount + 7 >>> 3; i++) {
+                for (int bit = 0; bit < 8; bit++) {
+                    int slot = i * 8 + bit;
+                    if ((booked[i] & (1 << bit)) != 0 && slot < slots.slotCount) {
+                        slots.book(slot);
+                    }
+                }
+            }
+        }
+        return slots;
+    }
+
+    public byte[] toBytes() {
+        int length = 0;
+        byte[] bytes = new byte[slotCount + 7 >>> 3];
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!isFree(slot)) {
+                bytes[slot >>> 3] |= (byte) (1 << (slot & 7));
+                length = (slot >>> 3) + 1;
+            }
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    public SlotMap copy() {
+        return fromBytes(startMinute, endMinute, slotMinutes, toBytes());
+    }
+
+    // HH:MM to minute of the day, 24:00 is accepted as the end of the day
+    public static int parseMinute(String time) {
+        if (time.equals("24:00")) {
+            return MINUTES_PER_DAY;
+        }
+        try {
+            return LocalTime.parse(time).toSecondOfDay() / 60;
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time " + time, e);
+        }
+    }
+
+    public static String formatMinute(int minute) {
+        return String.format("%02d:%02d", minute / 60, minute % 60);
+    }
+
+    // Getters
+    public int getStartMinute() {
+        return startMinute;
+    }
+
+    public int getEndMinute() {
+        return endMinute;
+    }
+
+    public int getSlotMinutes() {
+        return slotMinutes;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public int getFreeSlots() {
+        return freeSlots;
+    }
+
+    // the slot a minute of the day falls in, -1 outside the window
+    public int slotAt(int minute) {
+        if (minute < startMinute || minute >= startMinute + slotCount * slotMinutes) {
+            return -1;
+        }
+        return (minute - startMinute) / slotMinutes;
+    }
+
+    public int minuteOf(int slot) {
+        return startMinute + slot * slotMinutes;
+    }
+
+    public boolean isFree(int slot) {
+        return (words[slot >>> 6] & (1L << slot)) == 0;
+    }
+
+    // true if count slots starting at slot are all free, the conflict check for a range booking
+    public boolean isFree(int slot, int count) {
+        if (slot < 0 || count <= 0 || slot + count > slotCount) {
+            return false;
+        }
+        for (int i = slot; i < slot + count; i++) {
+            if (!isFree(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // first free slot at or after the given one, -1 if there is none
+    public int firstFree(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        if (from >= slotCount) {
+            return -1;
+        }
+        int word = from >>> 6;
+        long free = ~words[word] & (-1L << from);
+        if (free != 0) {
+            return (word << 6) + Long.numberOfTrailingZeros(free);
+        }
+        long later = word == 63 ? 0 : summary & (-1L << (word + 1));
+        if (later == 0) {
+            return -1;
+        }
+        word = Long.numberOfTrailingZeros(later);
+        return (word << 6) + Long.numberOfTrailingZeros(~words[word]);
+    }
+
+    // first free slot starting at or after the given minute of the day, -1 if there is none
+    public int firstFreeFrom(int minute) {
+        if (minute <= startMinute) {
+            return firstFree(0);
+        }
+        int slot = slotAt(minute);
+        if (slot < 0) {
+            return -1;
+        }
+        // a slot that already started is not offered
+        return firstFree(minuteOf(slot) < minute ? slot + 1 : slot);
+    }
+
+    public void book(int slot) {
+        book(slot, 1);
+    }
+
+    public void book(int slot, int count) {
+        if (!isFree(slot, count)) {
+            throw new IllegalStateException("Slot already booked!");
+        }
+        for (int i = slot; i < slot + count; i++) {
+            int word = i >>> 6;
+            words[word] |= 1L << i;
+            if (words[word] == -1L) {
+                summary &= ~(1L << word);
+            }
+        }
+        freeSlots -= count;
+    }
+
+    // returns false if the slot was not booked
+    public boolean release(int slot) {
+        if (slot < 0 || slot >= slotCount || isFree(slot)) {
+            return false;
+        }
+        int word = slot >>> 6;
+        words[word] &= ~(1L << slot);
+        summary |= 1L << word;
+        freeSlots++;
+        return true;
+    }
+}
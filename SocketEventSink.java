@@ -0,0 +1,77 @@
+package scheduler.events;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// streams events as JSON lines to a local listener, reconnecting on the next batch after a failure;
+// events that arrive while nobody is listening are skipped
+public class SocketEventSink implements EventSubscriber {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long RECONNECT_DELAY_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private Socket socket = null;
+    private BufferedWriter writer = null;
+    private long nextConnectAt = 0;
+
+    public SocketEventSink(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void onEvent(ChangeEvent event, long sequence, boolean endOfBatch) {
+        if (writer == null && !connect()) {
+            return;
+        }
+        try {
+            writer.write(event.toJson(sequence));
+            writer.newLine();
+            if (endOfBatch) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    private boolean connect() {
+        long now = System.currentTimeMillis();
+        if (now < nextConnectAt) {
+            return false;
+        }
+        try {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException e) {
+            disconnect();
+            nextConnectAt = now + RECONNECT_DELAY_MILLIS;
+            return false;
+        }
+    }
+
+    private void disconnect() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // already broken
+        }
+        socket = null;
+        writer = null;
+    }
+
+    @Override
+    public String toString() {
+        return "SocketEventSink{" + host + ":" + port + "}";
+    }
+}
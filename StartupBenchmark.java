@@ -0,0 +1,109 @@
+package scheduler.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the startup of Scheduler builds, typically the JVM one against the native image from build-native.sh.
+ *
+ * Usage: StartupBenchmark [runs] <command>...
+ *
+ * Every command is one Scheduler build with its arguments, split on spaces. Each is started runs times (after one
+ * untimed run that warms the file cache) and measured from process start to the first "> " prompt, the delay a
+ * kiosk user sees. At the prompt the peak resident set size (VmHWM) is read from /proc, so this runs on Linux only.
+ * Then the process gets "quit" and the next run starts. No database is touched before the prompt.
+ */
+public class StartupBenchmark {
+
+    private static final byte[] PROMPT = "\n\n> ".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        int first = args.length > 0 && args[0].matches("\\d+") ? 1 : 0;
+        int runs = first == 1 ? Integer.parseInt(args[0]) : 10;
+        if (args.length == first) {
+            System.out.println("Usage: StartupBenchmark [runs] <command>...");
+            return;
+        }
+        for (String command : Arrays.copyOfRange(args, first, args.length)) {
+            List<String> argv = Arrays.asList(command.trim().split(" +"));
+            run(argv);
+            List<Long> startupMicros = new ArrayList<>();
+            List<Long> peakKb = new ArrayList<>();
+            for (int i = 0; i < runs; i++) {
+                long[] result = run(argv);
+                startupMicros.add(result[0]);
+                peakKb.add(result[1]);
+            }
+            Collections.sort(startupMicros);
+            Collections.sort(peakKb);
+            System.out.println(command);
+            System.out.printf("  time to prompt: median %.1f ms, p90 %.1f ms, min %.1f ms%n",
+                    percentile(startupMicros, 50) / 1000.0, percentile(startupMicros, 90) / 1000.0,
+                    startupMicros.get(0) / 1000.0);
+            System.out.printf("  peak RSS at prompt: median %.1f MB, max %.1f MB%n",
+                    percentile(peakKb, 50) / 1024.0, peakKb.get(peakKb.size() - 1) / 1024.0);
+        }
+    }
+
+    // one start of the command, returns microseconds to the first prompt and VmHWM in kB
+    private static long[] run(List<String> argv) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(argv);
+        builder.redirectErrorStream(true);
+        long start = System.nanoTime();
+        Process process = builder.start();
+        try {
+            awaitPrompt(process.getInputStream());
+            long startup = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            long peak = readPeakKb(process.pid());
+            OutputStream in = process.getOutputStream();
+            in.write("quit\n".getBytes(StandardCharsets.UTF_8));
+            in.flush();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                throw new IllegalStateException(argv + " did not quit");
+            }
+            return new long[]{startup, peak};
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    // reads output until the prompt. The command list lines start with "> " as well, the prompt is the one after
+    // the blank line that ends the list
+    private static void awaitPrompt(InputStream out) throws IOException {
+        byte[] last = new byte[PROMPT.length];
+        int b;
+        while ((b = out.read()) != -1) {
+            System.arraycopy(last, 1, last, 0, last.length - 1);
+            last[last.length - 1] = (byte) b;
+            if (Arrays.equals(last, PROMPT)) {
+                return;
+            }
+        }
+        throw new IllegalStateException("Exited before the first prompt");
+    }
+
+    private static long readPeakKb(long pid) throws IOException {
+        Path status = Paths.get("/proc", Long.toString(pid), "status");
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmHWM:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        throw new IllegalStateException("No VmHWM in " + status);
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+}
@@ -0,0 +1,146 @@
+package scheduler.reminder;
+
+import java.util.List;
+
+/**
+ * Hierarchical hashed timing wheel.
+ *
+ * Time is counted in ticks. Every level is a wheel of 2^bits buckets and handles one "digit" of the tick number, like
+ * the hands of a clock: a reminder sits on the level of the highest digit in which its tick differs from the current
+ * tick, in the bucket of that digit. When the lower digits of the current tick roll over to zero, the bucket the
+ * higher hand now points at is cascaded down. Reminders beyond the top level wait in an overflow bucket that is
+ * cascaded whenever the top hand wraps. Insert and cancel are O(1), a tick is O(1) plus the reminders that expire or
+ * cascade during it. Not thread-safe, ReminderService serializes access.
+ */
+public class TimingWheel {
+
+    static class Bucket {
+        private Reminder head = null;
+
+        private void add(Reminder reminder) {
+            reminder.bucket = this;
+            reminder.prev = null;
+            reminder.next = head;
+            if (head != null) {
+                head.prev = reminder;
+            }
+            head = reminder;
+        }
+
+        private void remove(Reminder reminder) {
+            if (reminder.prev != null) {
+                reminder.prev.next = reminder.next;
+            } else {
+                head = reminder.next;
+            }
+            if (reminder.next != null) {
+                reminder.next.prev = reminder.prev;
+            }
+            reminder.prev = null;
+            reminder.next = null;
+            reminder.bucket = null;
+        }
+
+        // unlinks every reminder and returns the old list, still chained through next
+        private Reminder drain() {
+            Reminder first = head;
+            head = null;
+            return first;
+        }
+    }
+
+    private final long tickMillis;
+    private final int bits;
+    private final int mask;
+    private final Bucket[][] levels;
+    private final Bucket overflow = new Bucket();
+    private long currentTick;
+    private int size = 0;
+
+    public TimingWheel(long tickMillis, int bits, int levelCount, long startMillis) {
+        if (tickMillis <= 0 || bits <= 0 || levelCount <= 0 || (long) bits * levelCount >= 63) {
+            throw new IllegalArgumentException("Invalid timing wheel settings!");
+        }
+        this.tickMillis = tickMillis;
+        this.bits = bits;
+        this.mask = (1 << bits) - 1;
+        this.levels = new Bucket[levelCount][1 << bits];
+        for (Bucket[] level : levels) {
+            for (int i = 0; i < level.length; i++) {
+                level[i] = new Bucket();
+            }
+        }
+        this.currentTick = startMillis / tickMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // reminders that are already due fire on the next tick
+    public void add(Reminder reminder) {
+        long tick = Math.max(reminder.getDeadline() / tickMillis, currentTick + 1);
+        place(reminder, tick);
+        size++;
+    }
+
+    public void cancel(Reminder reminder) {
+        if (reminder.bucket != null) {
+            reminder.bucket.remove(reminder);
+            size--;
+        }
+    }
+
+    // advances the wheel to the given time and collects every reminder that came due on the way
+    public void advance(long nowMillis, List<Reminder> due) {
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            // cascade from the highest hand that moved, so reminders end up on the lowest level they belong to
+            int moved = 0;
+            while (moved < levels.length && digit(currentTick, moved) == 0) {
+                moved++;
+            }
+            if (moved == levels.length) {
+                cascade(overflow);
+                moved--;
+            }
+            for (int level = moved; level >= 1; level--) {
+                cascade(levels[level][digit(currentTick, level)]);
+            }
+            Reminder expired = levels[0][digit(currentTick, 0)].drain();
+            while (expired != null) {
+                Reminder next = expired.next;
+                expired.prev = null;
+                expired.next = null;
+                expired.bucket = null;
+                due.add(expired);
+                size--;
+                expired = next;
+            }
+        }
+    }
+
+    private void cascade(Bucket bucket) {
+        Reminder reminder = bucket.drain();
+        while (reminder != null) {
+            Reminder next = reminder.next;
+            place(reminder, Math.max(reminder.getDeadline() / tickMillis, currentTick));
+            reminder = next;
+        }
+    }
+
+    private void place(Reminder reminder, long tick) {
+        long differing = tick ^ currentTick;
+        int level = differing == 0 ? 0 : (63 - Long.numberOfLeadingZeros(differing)) / bits;
+        if (level >= levels.length) {
+            overflow.add(reminder);
+        } else {
+            levels[level][digit(tick, level)].add(reminder);
+        }
+    }
+
+    private int digit(long tick, int level) {
+        return (int) (tick >>> (bits * level)) & mask;
+    }
+}
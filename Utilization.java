@@ -0,0 +1,219 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summary counters behind the utilization command.
+ *
+ * Every write that changes what is offered or booked also adds its delta to the counters, on the same connection
+ * and inside the same transaction, so the counters commit or roll back together with the row they describe:
+ * CaregiverUtilization and DayUtilization count offered and booked slots per caregiver and day and per day,
+ * VaccineUtilization counts bookings per appointment day and dose stock changes per day they happened. Reading a
+ * date range is then one index range scan per table instead of a GROUP BY over Appointments and Availabilities.
+ *
+ * Rows written around the counters (bulk loads, manual fixes) are picked up by rebuild, which recomputes the slot
+ * and booking counters from the tables. Dose changes have no history to recompute from and are left as they are.
+ */
+public class Utilization {
+
+    // each counter is an UPDATE of its row, and an INSERT on the first write of its key. UPDLOCK/HOLDLOCK make a
+    // second first writer on SQL Server wait for the first one's row, H2 ignores the hints and a second writer that
+    // loses the insert updates instead. The parameters are in the same order in both statements
+    private static final String updateCaregiver = "UPDATE CaregiverUtilization WITH (UPDLOCK, HOLDLOCK) " +
+            "SET OfferedSlots = OfferedSlots + ?, BookedSlots = BookedSlots + ? WHERE Day = ? AND Caregiver_Name = ?";
+    private static final String insertCaregiver = "INSERT INTO CaregiverUtilization (OfferedSlots, BookedSlots, " +
+            "Day, Caregiver_Name) VALUES (?, ?, ?, ?)";
+    private static final String updateDay = "UPDATE DayUtilization WITH (UPDLOCK, HOLDLOCK) " +
+            "SET OfferedSlots = OfferedSlots + ?, BookedSlots = BookedSlots + ? WHERE Day = ?";
+    private static final String insertDay = "INSERT INTO DayUtilization (OfferedSlots, BookedSlots, Day) " +
+            "VALUES (?, ?, ?)";
+    private static final String updateVaccine = "UPDATE VaccineUtilization WITH (UPDLOCK, HOLDLOCK) " +
+            "SET Booked = Booked + ?, DoseChange = DoseChange + ? WHERE Day = ? AND Vaccine_Name = ?";
+    private static final String insertVaccine = "INSERT INTO VaccineUtilization (Booked, DoseChange, Day, " +
+            "Vaccine_Name) VALUES (?, ?, ?, ?)";
+
+    // adds to the slots a caregiver offers and has booked on a day
+    public static void addCaregiver(Connection con, Date day, String caregiver, int offered, int booked)
+            throws SQLException {
+        upsert(con, updateCaregiver, insertCaregiver, offered, booked, day, caregiver);
+        upsert(con, updateDay, insertDay, offered, booked, day);
+    }
+
+    // adds to a vaccine's bookings on an appointment day, or to its dose stock change on the day of the change
+    public static void addVaccine(Connection con, Date day, String vaccine, int booked, int doseChange)
+            throws SQLException {
+        upsert(con, updateVaccine, insertVaccine, booked, doseChange, day, vaccine);
+    }
+
+    // runs the update, or the insert if no row matched, on the caller's connection and transaction. An insert that
+    // loses to a concurrent one updates the row that one created
+    static void upsert(Connection con, String update, String insert, Object... values) throws SQLException {
+        if (executeUpdate(con, update, values) > 0) {
+            return;
+        }
+        try {
+            executeUpdate(con, insert, values);
+        } catch (SQLException e) {
+            if (!ConnectionManager.isDuplicateKey(e) || executeUpdate(con, update, values) == 0) {
+                throw e;
+            }
+        }
+    }
+
+    private static int executeUpdate(Connection con, String sql, Object... values) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(sql);
+        for (int i = 0; i < values.length; i++) {
+            statement.setObject(i + 1, values[i]);
+        }
+        return statement.executeUpdate();
+    }
+
+    public static Date today() {
+        return Date.valueOf(LocalDate.now());
+    }
+
+    // when UtilizationRebuildHours is set, rebuilds the counters of the last UtilizationRebuildDays days and every
+    // later day at startup and then at that interval
+    public static void startRebuildIfConfigured() {
+        String interval = System.getenv("UtilizationRebuildHours");
+        if (interval == null) {
+            return;
+        }
+        String days = System.getenv("UtilizationRebuildDays");
+        int rebuildDays = days == null ? 30 : Integer.parseInt(days);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "utilization-rebuild");
+            t.setDaemon(true);
+            return t;
+        });
+        long hours = Long.parseLong(interval);
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                rebuild(Date.valueOf(LocalDate.now().minusDays(rebuildDays)));
+            } catch (SQLException e) {
+                System.out.println("Error occurred when rebuilding utilization: " + e);
+            }
+        }, 0, hours, TimeUnit.HOURS);
+    }
+
+    // recomputes the counters of every day from the given one on, one day per transaction. Archived days count
+    // their rows in AvailabilitiesHistory and AppointmentsHistory, so a rebuild reaching past the archive horizon
+    // keeps their counters
+    public static void rebuild(Date from) throws SQLException {
+        for (Date day : getDays(from)) {
+            Retry.run(() -> rebuildDay(day));
+        }
+    }
+
+    // every day from the given one on that has source rows or counters
+    private static List<Date> getDays(Date from) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getDays = "SELECT Day FROM (SELECT Time AS Day FROM Availabilities WHERE Time >= ? " +
+                "UNION SELECT Time FROM Appointments WHERE Time >= ? " +
+                "UNION SELECT Time FROM AvailabilitiesHistory WHERE Time >= ? " +
+                "UNION SELECT Time FROM AppointmentsHistory WHERE Time >= ? " +
+                "UNION SELECT Day FROM CaregiverUtilization WHERE Day >= ? " +
+                "UNION SELECT Day FROM DayUtilization WHERE Day >= ? " +
+                "UNION SELECT Day FROM VaccineUtilization WHERE Day >= ?) d ORDER BY Day";
+        try {
+            PreparedStatement statement = con.prepareStatement(getDays);
+            for (int i = 1; i <= 7; i++) {
+                statement.setDate(i, from);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            List<Date> days = new ArrayList<>();
+            while (resultSet.next()) {
+                days.add(resultSet.getDate("Day"));
+            }
+            return days;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static Void rebuildDay(Date day) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        // shared key-range locks on the day's source rows first: writers that already changed the day finish
+        // (counters included) before the rebuild reads, later ones wait until it commits, and other days are not
+        // held up. Writers lock the source rows before the counters as well, so the two never wait on each other in
+        // opposite order. The history tables are read after the live ones, so rows the Archiver moved are seen once
+        String lockAvailabilities = "SELECT COUNT(*) FROM Availabilities WITH (ROWLOCK, HOLDLOCK) WHERE Time = ?";
+        String lockAppointments = "SELECT COUNT(*) FROM Appointments WITH (ROWLOCK, HOLDLOCK) WHERE Time = ?";
+        String clearCaregivers = "DELETE FROM CaregiverUtilization WHERE Day = ?";
+        // a day without an availability row was booked out as a whole day before slots existed, it offered as many
+        // slots as were booked
+        String fillCaregivers = "INSERT INTO CaregiverUtilization (Day, Caregiver_Name, OfferedSlots, BookedSlots) " +
+                "SELECT Day, Caregiver_Name, " +
+                "CASE WHEN MAX(Listed) = 1 THEN SUM(OfferedSlots) ELSE SUM(BookedSlots) END, SUM(BookedSlots) " +
+                "FROM (SELECT Time AS Day, Username AS Caregiver_Name, 1 AS Listed, " +
+                "(EndMinute - StartMinute) / SlotMinutes AS OfferedSlots, 0 AS BookedSlots " +
+                "FROM Availabilities WHERE Time = ? " +
+                "UNION ALL SELECT Time, Username, 1, (EndMinute - StartMinute) / SlotMinutes, 0 " +
+                "FROM AvailabilitiesHistory WHERE Time = ? " +
+                "UNION ALL SELECT Time, Caregiver_Name, 0, 0, 1 FROM Appointments WHERE Time = ? " +
+                "UNION ALL SELECT Time, Caregiver_Name, 0, 0, 1 FROM AppointmentsHistory WHERE Time = ?) s " +
+                "GROUP BY Day, Caregiver_Name";
+        String clearDay = "DELETE FROM DayUtilization WHERE Day = ?";
+        String fillDay = "INSERT INTO DayUtilization (Day, OfferedSlots, BookedSlots) " +
+                "SELECT Day, SUM(OfferedSlots), SUM(BookedSlots) FROM CaregiverUtilization WHERE Day = ? GROUP BY Day";
+        String fillVaccines = "MERGE INTO VaccineUtilization AS t USING (SELECT d.Day, d.Vaccine_Name, " +
+                "COALESCE(b.Booked, 0) AS Booked " +
+                "FROM (SELECT Day, Vaccine_Name FROM VaccineUtilization WHERE Day = ? " +
+                "UNION SELECT Time, Vaccine_Name FROM Appointments WHERE Time = ? " +
+                "UNION SELECT Time, Vaccine_Name FROM AppointmentsHistory WHERE Time = ?) d " +
+                "LEFT JOIN (SELECT Time, Vaccine_Name, COUNT(*) AS Booked FROM (SELECT Time, Vaccine_Name " +
+                "FROM Appointments WHERE Time = ? UNION ALL SELECT Time, Vaccine_Name FROM AppointmentsHistory " +
+                "WHERE Time = ?) a GROUP BY Time, Vaccine_Name) b " +
+                "ON b.Time = d.Day AND b.Vaccine_Name = d.Vaccine_Name) AS s " +
+                "ON t.Day = s.Day AND t.Vaccine_Name = s.Vaccine_Name " +
+                "WHEN MATCHED THEN UPDATE SET Booked = s.Booked " +
+                "WHEN NOT MATCHED THEN INSERT (Day, Vaccine_Name, Booked, DoseChange) VALUES (s.Day, s.Vaccine_Name, " +
+                "s.Booked, 0);";
+        try {
+            con.setAutoCommit(false);
+            lock(con, lockAvailabilities, day);
+            lock(con, lockAppointments, day);
+            execute(con, clearCaregivers, day, 1);
+            execute(con, fillCaregivers, day, 4);
+            execute(con, clearDay, day, 1);
+            execute(con, fillDay, day, 1);
+            execute(con, fillVaccines, day, 5);
+            con.commit();
+            return null;
+        } finally {
+            // an uncommitted transaction is rolled back when the connection goes back to the pool
+            cm.closeConnection();
+        }
+    }
+
+    private static void lock(Connection con, String sql, Date day) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(sql);
+        statement.setDate(1, day);
+        statement.executeQuery().close();
+    }
+
+    private static void execute(Connection con, String sql, Date day, int parameters) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(sql);
+        for (int i = 1; i <= parameters; i++) {
+            statement.setDate(i, day);
+        }
+        statement.executeUpdate();
+    }
+}
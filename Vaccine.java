@@ -1,8 +1,10 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
 
 import java.sql.Connection;
+import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -10,15 +12,25 @@ import java.sql.SQLException;
 public class Vaccine {
     private final String vaccineName;
     private int availableDoses;
+    // row version of the Vaccines row the doses were read from, updates only apply if it is unchanged
+    private int version;
 
     private Vaccine(VaccineBuilder builder) {
         this.vaccineName = builder.vaccineName;
         this.availableDoses = builder.availableDoses;
+        this.version = 0;
     }
 
     private Vaccine(VaccineGetter getter) {
         this.vaccineName = getter.vaccineName;
         this.availableDoses = getter.availableDoses;
+        this.version = getter.version;
+    }
+
+    private Vaccine(Vaccine other) {
+        this.vaccineName = other.vaccineName;
+        this.availableDoses = other.availableDoses;
+        this.version = other.version;
     }
 
     // Getters
@@ -30,65 +42,177 @@ public class Vaccine {
         return availableDoses;
     }
 
+    public int getVersion() {
+        return version;
+    }
+
     public void saveToDB() throws SQLException {
+        saveToDB(null, null);
+    }
+
+    // the doses come from the given lot, written in the same transaction; null for doses without a lot
+    public void saveToDB(String lot, Date expiry) throws SQLException {
+        Retry.run(() -> insert(lot, expiry));
+    }
+
+    private Void insert(String lot, Date expiry) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
+        String addDoses = "INSERT INTO Vaccines (Name, Doses, Version) VALUES (?, ?, 0)";
         try {
+            con.setAutoCommit(false);
             PreparedStatement statement = con.prepareStatement(addDoses);
             statement.setString(1, this.vaccineName);
             statement.setInt(2, this.availableDoses);
             statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
+            Utilization.addVaccine(con, Utilization.today(), this.vaccineName, 0, this.availableDoses);
+            finishDoseChange(con, lot, expiry, this.availableDoses);
+            con.commit();
+            return null;
         } finally {
             cm.closeConnection();
+            invalidate(lot);
         }
     }
 
     // Increment the available doses
     public void increaseAvailableDoses(int num) throws SQLException {
+        increaseAvailableDoses(num, null, null);
+    }
+
+    // the doses come from the given lot, written in the same transaction; null for doses without a lot
+    public void increaseAvailableDoses(int num, String lot, Date expiry) throws SQLException {
         if (num <= 0) {
             throw new IllegalArgumentException("Argument cannot be negative!");
         }
-        this.availableDoses += num;
+        updateAvailableDoses(num, lot, expiry);
+    }
+
+    // Decrement the available doses
+    public void decreaseAvailableDoses(int num) throws SQLException {
+        updateAvailableDoses(-num, null, null);
+    }
+
+    private void updateAvailableDoses(int delta, String lot, Date expiry) throws SQLException {
+        if (ConcurrencyControl.getMode() == ConcurrencyControl.Mode.PESSIMISTIC) {
+            Retry.run(() -> updateAvailableDosesLocked(delta, lot, expiry));
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            if (this.availableDoses + delta < 0) {
+                throw new IllegalArgumentException("Not enough available doses!");
+            }
+            int doses = this.availableDoses + delta;
+            if (Retry.run(() -> compareAndSetDoses(doses, lot, expiry))) {
+                return;
+            }
+            // someone else updated the row since we read it, start over from the current row
+            ConcurrencyControl.recordConflict();
+            if (attempt >= ConcurrencyControl.BACKOFF.getMaxAttempts()) {
+                throw new ConcurrentUpdateException("Too many concurrent updates to vaccine " + this.vaccineName);
+            }
+            ConcurrencyControl.BACKOFF.pause(attempt);
+            refresh();
+        }
+    }
+
+    // the rest of a dose change's transaction: the lot the doses went to, and the idempotency key of the command
+    // that changed them
+    private void finishDoseChange(Connection con, String lot, Date expiry, int doses) throws SQLException {
+        if (lot != null) {
+            DoseLots.add(con, this.vaccineName, lot, expiry, doses);
+        }
+        IdempotencyKeys.store(con);
+    }
 
+    private void invalidate(String lot) {
+        ModelCache.invalidateVaccine(this.vaccineName);
+        if (lot != null) {
+            DoseLots.invalidate(this.vaccineName);
+        }
+    }
+
+    private boolean compareAndSetDoses(int doses, String lot, Date expiry) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
+        String updateDoses = "UPDATE Vaccines SET Doses = ?, Version = Version + 1 WHERE Name = ? AND Version = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
+            PreparedStatement statement = con.prepareStatement(updateDoses);
+            statement.setInt(1, doses);
             statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
+            statement.setInt(3, this.version);
+            con.setAutoCommit(false);
+            if (statement.executeUpdate() == 0) {
+                return false;
+            }
+            Utilization.addVaccine(con, Utilization.today(), this.vaccineName, 0, doses - this.availableDoses);
+            finishDoseChange(con, lot, expiry, doses - this.availableDoses);
+            con.commit();
+            this.availableDoses = doses;
+            this.version++;
+            return true;
         } finally {
             cm.closeConnection();
+            invalidate(lot);
         }
     }
 
-    // Decrement the available doses
-    public void decreaseAvailableDoses(int num) throws SQLException {
-        if (this.availableDoses - num < 0) {
-            throw new IllegalArgumentException("Not enough available doses!");
+    // re-read doses and version straight from the table, the cached copy is what got us the conflict
+    private void refresh() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getVaccine = "SELECT Doses, Version FROM Vaccines WHERE Name = ?";
+        try {
+            PreparedStatement statement = con.prepareStatement(getVaccine);
+            statement.setString(1, this.vaccineName);
+            ResultSet resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                throw new SQLException("Vaccine " + this.vaccineName + " no longer exists");
+            }
+            this.availableDoses = resultSet.getInt("Doses");
+            this.version = resultSet.getInt("Version");
+        } finally {
+            cm.closeConnection();
         }
-        this.availableDoses -= num;
+    }
+
+    // pessimistic variant: lock the row, then read and write it inside one transaction
+    private Void updateAvailableDosesLocked(int delta, String lot, Date expiry) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
+        String lockVaccine = "SELECT Doses, Version FROM Vaccines WITH (UPDLOCK, ROWLOCK) WHERE Name = ?";
+        String updateDoses = "UPDATE Vaccines SET Doses = ?, Version = Version + 1 WHERE Name = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
+            con.setAutoCommit(false);
+            PreparedStatement lock = con.prepareStatement(lockVaccine);
+            lock.setString(1, this.vaccineName);
+            ResultSet resultSet = lock.executeQuery();
+            if (!resultSet.next()) {
+                throw new SQLException("Vaccine " + this.vaccineName + " no longer exists");
+            }
+            int doses = resultSet.getInt("Doses") + delta;
+            int version = resultSet.getInt("Version");
+            if (doses < 0) {
+                throw new IllegalArgumentException("Not enough available doses!");
+            }
+            PreparedStatement update = con.prepareStatement(updateDoses);
+            update.setInt(1, doses);
+            update.setString(2, this.vaccineName);
+            update.executeUpdate();
+            Utilization.addVaccine(con, Utilization.today(), this.vaccineName, 0, delta);
+            finishDoseChange(con, lot, expiry, delta);
+            con.commit();
+            this.availableDoses = doses;
+            this.version = version + 1;
+            return null;
         } finally {
+            // an uncommitted transaction is rolled back when the connection goes back to the pool
             cm.closeConnection();
+            invalidate(lot);
         }
     }
 
@@ -97,6 +221,7 @@ public class Vaccine {
         return "Vaccine{" +
                 "vaccineName='" + vaccineName + '\'' +
                 ", availableDoses=" + availableDoses +
+                ", version=" + version +
                 '}';
     }
 
@@ -117,22 +242,31 @@ public class Vaccine {
     public static class VaccineGetter {
         private final String vaccineName;
         private int availableDoses;
+        private int version;
 
         public VaccineGetter(String vaccineName) {
             this.vaccineName = vaccineName;
         }
 
         public Vaccine get() throws SQLException {
+            // read through the cache, every write to the vaccine invalidates it; callers get their own copy
+            // because a Vaccine tracks the doses and version it last wrote
+            Vaccine cached = ModelCache.VACCINES.get(this.vaccineName, this::getVaccine);
+            return cached == null ? null : new Vaccine(cached);
+        }
+
+        private Vaccine getVaccine() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
+            String getVaccine = "SELECT Name, Doses, Version FROM Vaccines WHERE Name = ?";
             try {
                 PreparedStatement statement = con.prepareStatement(getVaccine);
                 statement.setString(1, this.vaccineName);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
                     this.availableDoses = resultSet.getInt("Doses");
+                    this.version = resultSet.getInt("Version");
                     return new Vaccine(this);
                 }
                 return null;
@@ -144,4 +278,3 @@ public class Vaccine {
         }
     }
 }
-
@@ -0,0 +1,243 @@
+package scheduler.admission;
+
+import scheduler.Session;
+import scheduler.db.ConnectionManager;
+import scheduler.db.Deadline;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control in front of reserve.
+ *
+ * At most a limited number of reservations run against the database at once, the others wait in line in the order
+ * they arrived. The limit adapts to what the database sustains (AIMD): it grows by one per limit's worth of
+ * reservations that finish within WaitingRoomTargetMillis (default 1000), and shrinks by a tenth, at most once per
+ * typical reservation time, when one takes longer or fails on the database. It starts at the connection pool size
+ * and stays between 1 and WaitingRoomMaxConcurrency (default four times the pool size).
+ *
+ * Waiting patients are told their place in line and an estimate of the wait, updated every WaitingRoomUpdateMillis
+ * (default 5000). Load is shed at the door rather than deep in JDBC: when WaitingRoomSize patients are already
+ * waiting, or the estimated wait is longer than the command's deadline has left, the reservation is turned away
+ * right away. A patient whose deadline runs out in line leaves it without having touched the database.
+ *
+ * On when WaitingRoomSize is set.
+ */
+public class WaitingRoom {
+
+    private static final String size = System.getenv("WaitingRoomSize");
+    private static final long targetMillis = System.getenv("WaitingRoomTargetMillis") == null ? 1000 :
+            Long.parseLong(System.getenv("WaitingRoomTargetMillis"));
+    private static final int maxConcurrency = System.getenv("WaitingRoomMaxConcurrency") == null ?
+            4 * ConnectionManager.getPoolSize() : Integer.parseInt(System.getenv("WaitingRoomMaxConcurrency"));
+    private static final long updateMillis = System.getenv("WaitingRoomUpdateMillis") == null ? 5000 :
+            Long.parseLong(System.getenv("WaitingRoomUpdateMillis"));
+    private static WaitingRoom reserve = null;
+
+    private final int capacity;
+    private final long targetNanos;
+    private final int maxLimit;
+    private final ArrayDeque<Ticket> line = new ArrayDeque<>();
+
+    // all guarded by this
+    private double limit;
+    private int inFlight = 0;
+    private long nextNumber = 0;
+    private long lastDecrease = 0;
+    // moving average of how long an admitted reservation takes, 0 until the first one finished
+    private double serviceNanos = 0;
+    private long admitted = 0;
+    private long waited = 0;
+    private long waitNanos = 0;
+    private long shedFull = 0;
+    private long shedLate = 0;
+    private long overloads = 0;
+
+    public WaitingRoom(int capacity, long targetMillis, int initialLimit, int maxLimit) {
+        this.capacity = capacity;
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+    }
+
+    public static boolean isEnabled() {
+        return size != null;
+    }
+
+    // the waiting room of reserve, only when isEnabled
+    public static synchronized WaitingRoom getReserve() {
+        if (reserve == null) {
+            reserve = new WaitingRoom(Integer.parseInt(size), targetMillis, ConnectionManager.getPoolSize(),
+                    maxConcurrency);
+        }
+        return reserve;
+    }
+
+    // a place in line, and once admitted a place among the reservations running on the database
+    public class Ticket {
+        private final long enteredAt = System.nanoTime();
+        // order in line, -1 if it never had to wait
+        private long number = -1;
+        private long admittedAt;
+        private boolean isAdmitted = false;
+        private boolean overloaded = false;
+
+        // the reservation failed on the database, the limit goes down
+        public void overloaded() {
+            overloaded = true;
+        }
+
+        // frees the place for the next in line, must be called once for every admitted ticket
+        public void leave() {
+            Deadline deadline = Deadline.current();
+            finished(this, overloaded || (deadline != null && deadline.wasCut()));
+        }
+    }
+
+    // waits for the session's turn. Returns null, after telling the session why, if the reservation is turned away
+    public Ticket enter(Session session) {
+        Ticket ticket = new Ticket();
+        long estimate = 0;
+        boolean full;
+        synchronized (this) {
+            if (line.isEmpty() && inFlight < (int) limit) {
+                admit(ticket);
+                return ticket;
+            }
+            full = line.size() >= capacity;
+            if (full) {
+                shedFull++;
+                ticket = null;
+            } else {
+                estimate = estimateWaitMillis(line.size() + 1);
+                Deadline deadline = Deadline.current();
+                if (deadline != null && estimate > deadline.remainingMillis()) {
+                    shedLate++;
+                    ticket = null;
+                } else {
+                    ticket.number = nextNumber++;
+                    line.add(ticket);
+                }
+            }
+        }
+        if (full) {
+            session.println("Too many patients are waiting to reserve, please try again later!");
+            return null;
+        }
+        if (ticket == null) {
+            session.println("The wait to reserve is about " + seconds(estimate) +
+                    " right now, please try again later!");
+            return null;
+        }
+        session.println("You are number " + position(ticket) + " in line, the estimated wait is " +
+                seconds(estimate) + ".");
+        return await(session, ticket);
+    }
+
+    private Ticket await(Session session, Ticket ticket) {
+        Deadline deadline = Deadline.current();
+        long nextUpdate = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(updateMillis);
+        while (true) {
+            int place;
+            long estimate;
+            synchronized (this) {
+                while (!ticket.isAdmitted) {
+                    long untilUpdate = TimeUnit.NANOSECONDS.toMillis(nextUpdate - System.nanoTime());
+                    // an update that is due breaks out, the deadline is checked again when it is (almost) up
+                    long wait = deadline == null ? untilUpdate :
+                            Math.min(untilUpdate, Math.max(1, deadline.remainingMillis()));
+                    if (deadline != null && deadline.isExpired()) {
+                        line.remove(ticket);
+                        shedLate++;
+                        break;
+                    }
+                    if (wait <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        line.remove(ticket);
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+                if (ticket.isAdmitted) {
+                    return ticket;
+                }
+                if (!line.contains(ticket)) {
+                    place = -1;
+                    estimate = 0;
+                } else {
+                    place = position(ticket);
+                    estimate = estimateWaitMillis(place);
+                }
+            }
+            if (place < 0) {
+                session.println("Your turn did not come in time, please try again later!");
+                return null;
+            }
+            session.println("You are number " + place + " in line, the estimated wait is " + seconds(estimate) + ".");
+            nextUpdate = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(updateMillis);
+        }
+    }
+
+    private void admit(Ticket ticket) {
+        ticket.isAdmitted = true;
+        ticket.admittedAt = System.nanoTime();
+        inFlight++;
+        admitted++;
+        if (ticket.number >= 0) {
+            waited++;
+            waitNanos += ticket.admittedAt - ticket.enteredAt;
+        }
+    }
+
+    private synchronized void finished(Ticket ticket, boolean overloaded) {
+        long now = System.nanoTime();
+        long took = now - ticket.admittedAt;
+        inFlight--;
+        serviceNanos = serviceNanos == 0 ? took : 0.9 * serviceNanos + 0.1 * took;
+        if (overloaded || took > targetNanos) {
+            overloads++;
+            // one decrease per typical reservation time, the reservations that were running alongside this one
+            // saw the same overload
+            if (now - lastDecrease > serviceNanos) {
+                limit = Math.max(1, limit * 0.9);
+                lastDecrease = now;
+            }
+        } else if (inFlight + 1 >= (int) limit) {
+            // only grow while the limit is what holds reservations back
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        while (!line.isEmpty() && inFlight < (int) limit) {
+            admit(line.poll());
+        }
+        notifyAll();
+    }
+
+    // places are counted from the number of the first in line, a patient who gave up ahead makes it an over-estimate
+    private synchronized int position(Ticket ticket) {
+        Ticket first = line.peek();
+        return first == null ? 1 : (int) (ticket.number - first.number + 1);
+    }
+
+    // the line moves by limit reservations per typical reservation time
+    private long estimateWaitMillis(int place) {
+        double perReservation = serviceNanos == 0 ? targetNanos : serviceNanos;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis((long) (place * perReservation / (int) limit)));
+    }
+
+    private static String seconds(long millis) {
+        long seconds = (millis + 999) / 1000;
+        return seconds == 1 ? "1 second" : seconds + " seconds";
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("waiting room: limit %d, %d running, %d waiting, %d admitted (%d after waiting %.1f ms " +
+                        "on average), %d turned away when full, %d for their deadline, %d overloaded",
+                (int) limit, inFlight, line.size(), admitted, waited, waited == 0 ? 0.0 : waitNanos / 1e6 / waited,
+                shedFull, shedLate, overloads);
+    }
+}
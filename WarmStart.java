@@ -0,0 +1,241 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Deadline;
+import scheduler.model.Appointment;
+import scheduler.model.Availability;
+import scheduler.model.DoseLots;
+import scheduler.model.IdempotencyKeys;
+import scheduler.model.Utilization;
+import scheduler.util.Util;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Warm-start phase, run by Scheduler.main before the prompt or the machine-mode socket opens, so the first real
+ * command does not pay for everything that is cold after a restart. Three steps run in parallel:
+ * - connections: every pooled connection is opened (driver load, TLS handshake, login), then the read-only
+ *   handlers run once on each of them, which compiles their statements on the server and fills the read caches,
+ *   and the statements a reservation writes with run once in a transaction that is rolled back,
+ * - crypto: the PBKDF2 SecretKeyFactory and SecureRandom behind Util.generateHash are initialized,
+ * - handlers: WarmStartIterations (default 2000) synthetic commands that stop before touching the database run
+ *   through Scheduler.execute, so the JIT compiles the dispatch path.
+ * The phase waits at most WarmStartTimeoutMillis (default 15000), a failed step is reported and skipped. Synthetic
+ * commands run as a user nobody can create (the name is longer than any username) and are left out of the deadline
+ * stats.
+ *
+ * WarmStart=on runs the phase and reports time-to-ready and the latency of the first real command, WarmStart=measure
+ * only reports, for comparing against a cold start. Off by default.
+ */
+public class WarmStart {
+
+    private static final String mode = System.getenv("WarmStart");
+    private static final int iterations = System.getenv("WarmStartIterations") == null ? 2000 :
+            Integer.parseInt(System.getenv("WarmStartIterations"));
+    private static final long timeoutMillis = System.getenv("WarmStartTimeoutMillis") == null ? 15_000 :
+            Long.parseLong(System.getenv("WarmStartTimeoutMillis"));
+    // longer than the 255 characters a username may have, so the lookups find nobody
+    private static final String nobody = "warm-start-".repeat(24);
+
+    private static final AtomicBoolean firstCommand = new AtomicBoolean(true);
+    // the synthetic commands are not the first real one
+    private static volatile boolean warming = false;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "warm-start");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static boolean isReporting() {
+        return "on".equals(mode) || "measure".equals(mode);
+    }
+
+    // runs the phase if configured, returns when it is done or timed out
+    public static void runIfConfigured() {
+        if ("on".equals(mode)) {
+            warming = true;
+            try {
+                run();
+            } finally {
+                warming = false;
+            }
+        }
+        if (isReporting()) {
+            System.out.println("Ready " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after start");
+        }
+    }
+
+    private static void run() {
+        long start = System.nanoTime();
+        List<CompletableFuture<String>> steps = new ArrayList<>();
+        steps.add(step("connections", WarmStart::warmConnections));
+        steps.add(step("crypto", WarmStart::warmCrypto));
+        steps.add(step("handlers", WarmStart::warmHandlers));
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        StringBuilder report = new StringBuilder("Warm start:");
+        for (CompletableFuture<String> step : steps) {
+            try {
+                report.append(' ').append(step.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                report.append(" (a step timed out)");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // step() reports its own failures
+            }
+        }
+        Deadline.clearStats();
+        System.out.println(report.append(", ").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                .append(" ms in all"));
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    private static CompletableFuture<String> step(String name, Step step) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                step.run();
+                return name + " " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms";
+            } catch (Exception e) {
+                return name + " failed (" + e + ")";
+            }
+        }, executor);
+    }
+
+    // opens the whole pool at once, then runs the read-only handlers once per connection
+    private static void warmConnections() throws Exception {
+        int size = ConnectionManager.getPoolSize();
+        List<CompletableFuture<Void>> opened = new ArrayList<>();
+        List<ConnectionManager> managers = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            ConnectionManager cm = new ConnectionManager();
+            managers.add(cm);
+            // each manager holds its connection until all are open, otherwise they would share one
+            opened.add(CompletableFuture.runAsync(() -> {
+                try {
+                    Connection con = cm.createConnection();
+                    con.prepareStatement("SELECT 1").executeQuery().close();
+                    warmWrites(con);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }, executor));
+        }
+        try {
+            CompletableFuture.allOf(opened.toArray(new CompletableFuture<?>[0])).get();
+        } finally {
+            for (ConnectionManager cm : managers) {
+                cm.closeConnection();
+            }
+        }
+        String today = LocalDate.now().toString();
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            reads.add(CompletableFuture.runAsync(() -> {
+                Session session = new Session(new PrintStream(OutputStream.nullOutputStream()));
+                try {
+                    Scheduler.execute(session, new String[]{"login_patient", nobody, nobody});
+                    Scheduler.execute(session, new String[]{"login_caregiver", nobody, nobody});
+                    Scheduler.execute(session, new String[]{"search_caregiver_schedule", today});
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }, executor));
+        }
+        CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).get();
+    }
+
+    // the statements of a direct reservation, with the same text so the server reuses their plans. Nothing is left
+    // behind: the updates match no row, the appointment's references are null and 0 is an ID the sequence never
+    // hands out, and the transaction is rolled back. The batcher's insert is not covered
+    private static void warmWrites(Connection con) throws SQLException {
+        Date today = Utilization.today();
+        String name = "warm-start-" + UUID.randomUUID();
+        con.setAutoCommit(false);
+        try {
+            DoseLots.removeDoses(con, nobody, Map.of(nobody, 1));
+            DoseLots.removeFromTotal(con, nobody, 1);
+            PreparedStatement appointment = con.prepareStatement(Scheduler.addAppointment);
+            appointment.setInt(1, 0);
+            appointment.setString(2, null);
+            appointment.setDate(3, today);
+            appointment.setString(4, null);
+            appointment.setString(5, null);
+            appointment.setInt(6, Appointment.WHOLE_DAY);
+            appointment.setString(7, null);
+            appointment.executeUpdate();
+            // the pessimistic claim, and the optimistic one with its version check
+            PreparedStatement claimLocked = con.prepareStatement(Availability.updateSlots);
+            PreparedStatement claim = con.prepareStatement(Availability.updateSlotsAtVersion);
+            for (PreparedStatement slots : List.of(claimLocked, claim)) {
+                slots.setBytes(1, new byte[0]);
+                slots.setInt(2, 0);
+                slots.setDate(3, today);
+                slots.setString(4, nobody);
+            }
+            claim.setInt(5, 0);
+            claimLocked.executeUpdate();
+            claim.executeUpdate();
+            Utilization.addVaccine(con, today, name, 1, -1);
+            Utilization.addCaregiver(con, today, name, 0, 1);
+            IdempotencyKeys.Key key = new IdempotencyKeys.Key(name, name, "reserve");
+            key.answer(name);
+            IdempotencyKeys.store(con, List.of(key));
+        } finally {
+            con.rollback();
+            con.setAutoCommit(true);
+        }
+    }
+
+    private static void warmCrypto() {
+        Util.generateHash(nobody, Util.generateSalt());
+    }
+
+    // commands that are turned away before any query, they still go through dispatch, Deadline and the session
+    private static void warmHandlers() throws SQLException {
+        Session session = new Session(new PrintStream(OutputStream.nullOutputStream()));
+        String[][] commands = {
+                {"reserve", "2000-01-01", "warm-start"},
+                {"show_appointments"},
+                {"upload_availability", "2000-01-01"},
+                {"add_doses", "warm-start", "1"},
+                {"cancel", "1"},
+                {"search_caregiver_schedule"},
+                {"logout", "now"}
+        };
+        for (int i = 0; i < iterations; i++) {
+            Scheduler.execute(session, commands[i % commands.length]);
+        }
+    }
+
+    // reports how long the first real command took, called by Scheduler.execute
+    static void recordCommand(String operation, long nanos) {
+        if (isReporting() && !warming && firstCommand.compareAndSet(true, false)) {
+            System.out.println("First command (" + operation + ") took " +
+                    TimeUnit.NANOSECONDS.toMicros(nanos) / 1000.0 + " ms");
+        }
+    }
+}
@@ -0,0 +1,23 @@
+#!/bin/sh
+# Builds the Scheduler CLI for the JVM (out/classes) and as a GraalVM native executable (out/scheduler).
+#
+# DriverClasspath: the mssql-jdbc and h2 jars, separated by ':'
+# Needs javac and native-image of a GraalVM for JDK 17 or later on the PATH.
+#
+# Compare the two with
+#   java -cp out/classes scheduler.bench.StartupBenchmark 20 \
+#       "java -cp out/classes:$DriverClasspath scheduler.Scheduler" out/scheduler
+set -e
+
+if [ -z "$DriverClasspath" ]; then
+    echo "Set DriverClasspath to the JDBC driver jars" >&2
+    exit 1
+fi
+
+cd "$(dirname "$0")"
+rm -rf out
+mkdir -p out/classes
+javac -encoding UTF-8 -d out/classes -cp "$DriverClasspath" *.java
+# the native-image configuration and the embedded schema are classpath resources
+cp -r META-INF embedded-schema.sql out/classes/
+native-image -cp "out/classes:$DriverClasspath" -o out/scheduler
@@ -0,0 +1,134 @@
+-- Schema of the embedded profile (DBProfile=embedded, H2 in SQL Server mode), run once whenever the process starts.
+-- The original tables with every section of migrations.sql applied. Keep the two in step.
+
+CREATE TABLE IF NOT EXISTS Sites (
+    Name varchar(255) PRIMARY KEY,
+    Latitude float NOT NULL,
+    Longitude float NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS Caregivers (
+    Username varchar(255) PRIMARY KEY,
+    Salt BINARY(16),
+    Hash BINARY(16),
+    Site varchar(255) NULL REFERENCES Sites (Name)
+);
+
+CREATE TABLE IF NOT EXISTS Patients (
+    Username varchar(255) PRIMARY KEY,
+    Salt BINARY(16),
+    Hash BINARY(16)
+);
+
+CREATE TABLE IF NOT EXISTS Vaccines (
+    Name varchar(255) PRIMARY KEY,
+    Doses int,
+    Version int NOT NULL DEFAULT 0
+);
+
+CREATE TABLE IF NOT EXISTS Availabilities (
+    Time date,
+    Username varchar(255) REFERENCES Caregivers (Username),
+    Version int NOT NULL DEFAULT 0,
+    StartMinute smallint NOT NULL DEFAULT 0,
+    EndMinute smallint NOT NULL DEFAULT 1440,
+    SlotMinutes smallint NOT NULL DEFAULT 1440,
+    Booked varbinary(180) NULL,
+    FreeSlots int NOT NULL DEFAULT 1,
+    PRIMARY KEY (Time, Username)
+);
+
+CREATE TABLE IF NOT EXISTS Appointments (
+    ID int PRIMARY KEY,
+    Vaccine_Name varchar(255) REFERENCES Vaccines (Name),
+    Time date,
+    Patient_Name varchar(255) REFERENCES Patients (Username),
+    Caregiver_Name varchar(255) REFERENCES Caregivers (Username),
+    Slot smallint NOT NULL DEFAULT -1,
+    Lot varchar(64) NULL
+);
+
+CREATE TABLE IF NOT EXISTS AvailabilitiesHistory (
+    Time date,
+    Username varchar(255),
+    ArchivedAt datetime2 NOT NULL,
+    StartMinute smallint NOT NULL DEFAULT 0,
+    EndMinute smallint NOT NULL DEFAULT 1440,
+    SlotMinutes smallint NOT NULL DEFAULT 1440,
+    Booked varbinary(180) NULL,
+    FreeSlots int NOT NULL DEFAULT 1,
+    PRIMARY KEY (Time, Username)
+);
+
+CREATE TABLE IF NOT EXISTS AppointmentsHistory (
+    ID int PRIMARY KEY,
+    Vaccine_Name varchar(255),
+    Time date,
+    Patient_Name varchar(255),
+    Caregiver_Name varchar(255),
+    ArchivedAt datetime2 NOT NULL,
+    Slot smallint NOT NULL DEFAULT -1,
+    Lot varchar(64) NULL
+);
+
+-- H2 has no filtered indexes, IX_Availabilities_Open becomes a plain one
+CREATE INDEX IF NOT EXISTS IX_Availabilities_Time ON Availabilities (Time);
+CREATE INDEX IF NOT EXISTS IX_Appointments_Time ON Appointments (Time);
+CREATE INDEX IF NOT EXISTS IX_AppointmentsHistory_Patient ON AppointmentsHistory (Patient_Name);
+CREATE INDEX IF NOT EXISTS IX_AppointmentsHistory_Caregiver ON AppointmentsHistory (Caregiver_Name);
+
+CREATE TABLE IF NOT EXISTS CaregiverUtilization (
+    Day date,
+    Caregiver_Name varchar(255),
+    OfferedSlots int NOT NULL,
+    BookedSlots int NOT NULL,
+    PRIMARY KEY (Day, Caregiver_Name)
+);
+
+CREATE TABLE IF NOT EXISTS DayUtilization (
+    Day date PRIMARY KEY,
+    OfferedSlots int NOT NULL,
+    BookedSlots int NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS VaccineUtilization (
+    Day date,
+    Vaccine_Name varchar(255),
+    Booked int NOT NULL,
+    DoseChange int NOT NULL,
+    PRIMARY KEY (Day, Vaccine_Name)
+);
+
+CREATE TABLE IF NOT EXISTS DoseLots (
+    Vaccine_Name varchar(255) REFERENCES Vaccines (Name),
+    Lot varchar(64),
+    Expiry date NOT NULL,
+    Doses int NOT NULL,
+    PRIMARY KEY (Vaccine_Name, Lot)
+);
+CREATE INDEX IF NOT EXISTS IX_DoseLots_Expiry ON DoseLots (Expiry);
+
+CREATE TABLE IF NOT EXISTS ReplicaHeartbeat (
+    Id int PRIMARY KEY,
+    Beat bigint NOT NULL
+);
+-- this script runs at every start, the beat must survive it
+INSERT INTO ReplicaHeartbeat (Id, Beat) SELECT 1, 0 WHERE NOT EXISTS (SELECT 1 FROM ReplicaHeartbeat);
+
+CREATE TABLE IF NOT EXISTS IdempotencyKeys (
+    Username varchar(255),
+    IdempotencyKey varchar(64),
+    Operation varchar(32) NOT NULL,
+    Output nvarchar(max) NOT NULL,
+    CreatedAt datetime2 NOT NULL,
+    PRIMARY KEY (Username, IdempotencyKey)
+);
+CREATE INDEX IF NOT EXISTS IX_IdempotencyKeys_CreatedAt ON IdempotencyKeys (CreatedAt);
+
+CREATE SEQUENCE IF NOT EXISTS AppointmentIds AS int START WITH 1;
+-- a database from before the sequence continues after its largest ID, a later start never moves it backwards
+ALTER SEQUENCE AppointmentIds RESTART WITH (SELECT GREATEST(COALESCE(MAX(ID), 0) + 1,
+    (SELECT BASE_VALUE FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = 'APPOINTMENTIDS'))
+    FROM (SELECT ID FROM Appointments UNION ALL SELECT ID FROM AppointmentsHistory) AS AllAppointments);
+
+-- no change tracking: the embedded profile is a single node, there is no change feed to serve
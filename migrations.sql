@@ -0,0 +1,139 @@
+-- Schema changes on top of the original Caregivers, Patients, Vaccines, Availabilities and Appointments tables.
+-- Apply the sections in order, each one belongs to the feature named in its header.
+-- embedded-schema.sql is the same schema for the embedded profile, add new sections there as well.
+
+-- Archival of past availabilities and appointments (scheduler.archive.Archiver)
+CREATE TABLE AvailabilitiesHistory (
+    Time date,
+    Username varchar(255),
+    ArchivedAt datetime2 NOT NULL,
+    PRIMARY KEY (Time, Username)
+);
+
+CREATE TABLE AppointmentsHistory (
+    ID int PRIMARY KEY,
+    Vaccine_Name varchar(255),
+    Time date,
+    Patient_Name varchar(255),
+    Caregiver_Name varchar(255),
+    ArchivedAt datetime2 NOT NULL
+);
+
+CREATE INDEX IX_AppointmentsHistory_Patient ON AppointmentsHistory (Patient_Name);
+CREATE INDEX IX_AppointmentsHistory_Caregiver ON AppointmentsHistory (Caregiver_Name);
+
+-- the archiver deletes by date, keep that a seek on the hot tables
+CREATE INDEX IX_Availabilities_Time ON Availabilities (Time);
+CREATE INDEX IX_Appointments_Time ON Appointments (Time);
+
+-- Row versions for optimistic concurrency control (scheduler.model.Vaccine, scheduler.model.Availability)
+ALTER TABLE Vaccines ADD Version int NOT NULL DEFAULT 0;
+ALTER TABLE Availabilities ADD Version int NOT NULL DEFAULT 0;
+
+-- Clinic sites (scheduler.model.Site, scheduler.geo.SiteIndex)
+CREATE TABLE Sites (
+    Name varchar(255) PRIMARY KEY,
+    Latitude float NOT NULL,
+    Longitude float NOT NULL
+);
+
+ALTER TABLE Caregivers ADD Site varchar(255) NULL REFERENCES Sites (Name);
+
+-- Sub-day slots (scheduler.model.SlotMap, scheduler.model.Availability)
+-- an availability is a working window split into slots, Booked holds one bit per slot (NULL = nothing booked).
+-- The defaults describe the old whole-day rows: one slot spanning the day
+ALTER TABLE Availabilities ADD StartMinute smallint NOT NULL DEFAULT 0;
+ALTER TABLE Availabilities ADD EndMinute smallint NOT NULL DEFAULT 1440;
+ALTER TABLE Availabilities ADD SlotMinutes smallint NOT NULL DEFAULT 1440;
+ALTER TABLE Availabilities ADD Booked varbinary(180) NULL;
+ALTER TABLE Availabilities ADD FreeSlots int NOT NULL DEFAULT 1;
+
+-- archived availabilities keep their window and which of its slots were booked
+ALTER TABLE AvailabilitiesHistory ADD StartMinute smallint NOT NULL DEFAULT 0;
+ALTER TABLE AvailabilitiesHistory ADD EndMinute smallint NOT NULL DEFAULT 1440;
+ALTER TABLE AvailabilitiesHistory ADD SlotMinutes smallint NOT NULL DEFAULT 1440;
+ALTER TABLE AvailabilitiesHistory ADD Booked varbinary(180) NULL;
+ALTER TABLE AvailabilitiesHistory ADD FreeSlots int NOT NULL DEFAULT 1;
+
+-- booked-out rows stay in the table now, keep the lookup of open ones on the rows that are still open
+CREATE INDEX IX_Availabilities_Open ON Availabilities (Time) INCLUDE (Username) WHERE FreeSlots > 0;
+
+-- minute of the day the booked slot starts, -1 for whole-day appointments (a window may have a slot at 00:00)
+ALTER TABLE Appointments ADD Slot smallint NOT NULL DEFAULT -1;
+ALTER TABLE AppointmentsHistory ADD Slot smallint NOT NULL DEFAULT -1;
+
+-- Utilization counters (scheduler.model.Utilization), maintained in the same transaction as the rows they count
+CREATE TABLE CaregiverUtilization (
+    Day date,
+    Caregiver_Name varchar(255),
+    OfferedSlots int NOT NULL,
+    BookedSlots int NOT NULL,
+    PRIMARY KEY (Day, Caregiver_Name)
+);
+
+CREATE TABLE DayUtilization (
+    Day date PRIMARY KEY,
+    OfferedSlots int NOT NULL,
+    BookedSlots int NOT NULL
+);
+
+-- Booked counts appointments by appointment day, DoseChange counts stock changes by the day they were made
+CREATE TABLE VaccineUtilization (
+    Day date,
+    Vaccine_Name varchar(255),
+    Booked int NOT NULL,
+    DoseChange int NOT NULL,
+    PRIMARY KEY (Day, Vaccine_Name)
+);
+
+-- Change feed (scheduler.feed.ChangeTrackingSource), other nodes drop the cached rows these changes touch.
+-- Retention has to outlast the longest a node may be down, after that it drops its whole cache on restart
+ALTER DATABASE CURRENT SET CHANGE_TRACKING = ON (CHANGE_RETENTION = 2 DAYS, AUTO_CLEANUP = ON);
+ALTER TABLE Vaccines ENABLE CHANGE_TRACKING;
+ALTER TABLE Availabilities ENABLE CHANGE_TRACKING;
+ALTER TABLE Caregivers ENABLE CHANGE_TRACKING;
+ALTER TABLE Patients ENABLE CHANGE_TRACKING;
+ALTER TABLE Sites ENABLE CHANGE_TRACKING;
+
+-- Dose lots (scheduler.model.DoseLots). Vaccines.Doses stays the total, a lot row says how much of it expires when.
+-- Expired lots are deleted by the sweep, their remaining doses taken out of the total
+CREATE TABLE DoseLots (
+    Vaccine_Name varchar(255) REFERENCES Vaccines (Name),
+    Lot varchar(64),
+    Expiry date NOT NULL,
+    Doses int NOT NULL,
+    PRIMARY KEY (Vaccine_Name, Lot)
+);
+CREATE INDEX IX_DoseLots_Expiry ON DoseLots (Expiry);
+
+-- the lot the appointment's dose came from, NULL for doses without a lot
+ALTER TABLE Appointments ADD Lot varchar(64) NULL;
+ALTER TABLE AppointmentsHistory ADD Lot varchar(64) NULL;
+
+ALTER TABLE DoseLots ENABLE CHANGE_TRACKING;
+
+-- Read replica routing (scheduler.db.ReplicaRouter). Each node bumps Beat on the primary and reads it back from the
+-- replica to tell how far the replica has caught up. Replicated like every other table
+CREATE TABLE ReplicaHeartbeat (
+    Id int PRIMARY KEY,
+    Beat bigint NOT NULL
+);
+INSERT INTO ReplicaHeartbeat (Id, Beat) VALUES (1, 0);
+
+-- Idempotency keys (scheduler.model.IdempotencyKeys). A key is written with its output by the transaction of the
+-- keyed command's write
+CREATE TABLE IdempotencyKeys (
+    Username varchar(255),
+    IdempotencyKey varchar(64),
+    Operation varchar(32) NOT NULL,
+    Output nvarchar(max) NOT NULL,
+    CreatedAt datetime2 NOT NULL,
+    PRIMARY KEY (Username, IdempotencyKey)
+);
+CREATE INDEX IX_IdempotencyKeys_CreatedAt ON IdempotencyKeys (CreatedAt);
+
+-- Appointment IDs (scheduler.model.Appointment.nextID). One sequence on the primary, so nodes never hand out the same
+-- ID. It starts after the largest ID already used, archived appointments included
+DECLARE @firstAppointmentId int = (SELECT COALESCE(MAX(ID), 0) + 1 FROM (SELECT ID FROM Appointments
+    UNION ALL SELECT ID FROM AppointmentsHistory) AS AllAppointments);
+EXEC ('CREATE SEQUENCE AppointmentIds AS int START WITH ' + CAST(@firstAppointmentId AS varchar(11)));